@@ -0,0 +1,24 @@
+package com.bb.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar.  Takes the usual JMH command line and always adds the GC profiler, so every result
+ * comes with its allocation rate (gc.alloc.rate.norm is bytes allocated per operation).
+ *
+ *   mvn -P bench package
+ *   java -jar bb-bench/target/benchmarks.jar [jmh options] [benchmark regex]
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,57 @@
+package com.bb.bench;
+
+import com.bb.common.net.Codec;
+import com.bb.common.net.WireFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding one message of each type in each wire format.  Decoding goes through the codec's framing
+ * the same way bytes off a socket would.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({ "TEXT", "BINARY" })
+    public WireFormat format;
+
+    @Param({ "PlayerStats", "ShotFired", "ClientKeyEvent", "ClientShotAttempt", "TimingPacket", "SnapshotDelta", "GameWorld" })
+    public String type;
+
+    private Object message;
+    private Codec codec;
+    private ByteBuffer out;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        message = Messages.create(type);
+        codec = format.newCodec();
+        out = ByteBuffer.allocate(1024);
+
+        ByteBuffer buf = codec.encode(message, ByteBuffer.allocate(1024));
+        buf.flip();
+        encoded = new byte[buf.remaining()];
+        buf.get(encoded);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        out.clear();
+        out = codec.encode(message, out);
+        return out;
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        codec.accumulate(encoded, encoded.length);
+        return codec.getData();
+    }
+}
@@ -0,0 +1,68 @@
+package com.bb.bench;
+
+import com.bb.common.net.Codec;
+import com.bb.common.net.WireFormat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembling a stream of mixed messages that arrives split into fragments of a fixed size, from a byte at a time
+ * up to whole packets.  One operation is the whole stream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    public static final int MESSAGES = 200;
+
+    private static final String[] TYPES = { "PlayerStats", "ShotFired", "ClientKeyEvent", "TimingPacket", "SnapshotDelta" };
+
+    @Param({ "TEXT", "BINARY" })
+    public WireFormat format;
+
+    @Param({ "1", "16", "256", "1500" })
+    public int fragmentSize;
+
+    private Codec codec;
+    private byte[][] fragments;
+
+    @Setup
+    public void setup() {
+        codec = format.newCodec();
+
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            buf = codec.encode(Messages.create(TYPES[ii % TYPES.length]), buf);
+        }
+        buf.flip();
+        byte[] stream = new byte[buf.remaining()];
+        buf.get(stream);
+
+        fragments = new byte[(stream.length + fragmentSize - 1) / fragmentSize][];
+        for (int ii = 0; ii < fragments.length; ii++) {
+            int offset = ii * fragmentSize;
+            fragments[ii] = Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + fragmentSize));
+        }
+    }
+
+    @Benchmark
+    public int reassemble(Blackhole bh) throws IOException {
+        int decoded = 0;
+        for (byte[] fragment : fragments) {
+            codec.accumulate(fragment, fragment.length);
+            while (codec.hasData()) {
+                bh.consume(codec.getData());
+                decoded++;
+            }
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,46 @@
+package com.bb.bench;
+
+import com.bb.common.data.*;
+
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Representative instances of each message type, shared by the benchmarks.
+ */
+class Messages {
+    static Object create(String type) {
+        switch (type) {
+            case "PlayerStats":
+                return new PlayerStats("12.0", 123.5, 456.25, 90, false);
+            case "ShotFired":
+                return new ShotFired(new Point(10, 20), new Point(300, 400));
+            case "ClientKeyEvent":
+                return new ClientKeyEvent(KeyEvent.VK_UP, true);
+            case "ClientShotAttempt":
+                return new ClientShotAttempt(new Point(250, 175));
+            case "TimingPacket":
+                return new TimingPacket(1439000000000L, 1439000000012L, 1439000000025L);
+            case "SnapshotDelta":
+                return SnapshotDelta.between(SnapshotDelta.FULL, null, 1, players(20, new Random(1)));
+            case "GameWorld":
+                GameWorld world = new GameWorld(30);
+                world.populateRandomWalls();
+                return world;
+            default:
+                throw new IllegalArgumentException("Unknown message type " + type);
+        }
+    }
+
+    static Map<String, PlayerStats> players(int count, Random random) {
+        Map<String, PlayerStats> ret = new HashMap<>();
+        for (int ii = 0; ii < count; ii++) {
+            PlayerStats pp = new PlayerStats(ii + ".0", random.nextInt(4000), random.nextInt(4000), 100, ii % 2 == 0);
+            ret.put(pp.getPlayerId(), pp);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,69 @@
+package com.bb.bench;
+
+import com.bb.common.data.GameWorld;
+import com.bb.common.data.TerrainType;
+import com.bb.server.Raycaster;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.bb.common.data.GameWorld.CELL_SIZE;
+
+/**
+ * Casting shots through worlds of different sizes and wall densities.  Shots start anywhere in the world and run
+ * 500 pixels past a random aim point, like the server's.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RaycastBenchmark {
+    public static final int RAYS = 1024;
+
+    @Param({ "30", "256" })
+    public int worldSize;
+
+    // Fraction of cells that are walls
+    @Param({ "0.0", "0.1", "0.3" })
+    public double density;
+
+    private Raycaster raycaster;
+    private double[] rays;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        GameWorld world = new GameWorld(worldSize);
+        for (int xx = 0; xx < worldSize; xx++) {
+            for (int yy = 0; yy < worldSize; yy++) {
+                if (random.nextDouble() < density) {
+                    world.set(xx, yy, TerrainType.WALL);
+                }
+            }
+        }
+        raycaster = new Raycaster(world);
+
+        double extent = worldSize * CELL_SIZE;
+        rays = new double[RAYS * 4];
+        for (int ii = 0; ii < RAYS; ii++) {
+            double x1 = random.nextDouble() * extent;
+            double y1 = random.nextDouble() * extent;
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double length = 500 + random.nextDouble() * 300;
+            rays[ii * 4] = x1;
+            rays[ii * 4 + 1] = y1;
+            rays[ii * 4 + 2] = x1 + length * Math.cos(angle);
+            rays[ii * 4 + 3] = y1 + length * Math.sin(angle);
+        }
+    }
+
+    @Benchmark
+    public double cast() {
+        int ii = (next++ & (RAYS - 1)) * 4;
+        return raycaster.cast(rays[ii], rays[ii + 1], rays[ii + 2], rays[ii + 3]);
+    }
+}
@@ -0,0 +1,91 @@
+package com.bb.bench;
+
+import com.bb.common.data.EntityStore;
+import com.bb.common.data.PlayerStats;
+import com.bb.common.data.SnapshotDelta;
+import com.bb.common.net.Codec;
+import com.bb.common.net.WireFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The game manager's per-tick snapshot work: copying everyone out of the EntityStore, diffing against a baseline
+ * and encoding the result.  Between ticks a quarter of the players move.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int players;
+
+    @Param({ "TEXT", "BINARY" })
+    public WireFormat format;
+
+    private EntityStore entities;
+    private Map<String, PlayerStats> baseline;
+    private Codec codec;
+    private ByteBuffer out;
+    private Random random;
+    private long tick;
+
+    @Setup
+    public void setup() {
+        random = new Random(7);
+        entities = new EntityStore();
+        for (int ii = 0; ii < players; ii++) {
+            entities.allocate(random.nextInt(4000), random.nextInt(4000), 100, ii % 2 == 0);
+        }
+        baseline = capture();
+        codec = format.newCodec();
+        out = ByteBuffer.allocate(64 * 1024);
+    }
+
+    private Map<String, PlayerStats> capture() {
+        Map<String, PlayerStats> ret = new HashMap<>();
+        for (int hh = 0; hh < entities.highWater(); hh++) {
+            if (entities.isAlive(hh)) {
+                PlayerStats pp = entities.copy(hh);
+                ret.put(pp.getPlayerId(), pp);
+            }
+        }
+        return ret;
+    }
+
+    private void move() {
+        for (int ii = 0; ii < players / 4; ii++) {
+            int handle = random.nextInt(players);
+            entities.setX(handle, entities.getX(handle) + 1);
+        }
+    }
+
+    @Benchmark
+    public Map<String, PlayerStats> captureOnly() {
+        return capture();
+    }
+
+    @Benchmark
+    public ByteBuffer fullSnapshot() {
+        SnapshotDelta delta = SnapshotDelta.between(SnapshotDelta.FULL, null, ++tick, capture());
+        out.clear();
+        out = codec.encode(delta, out);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer deltaSnapshot() {
+        move();
+        SnapshotDelta delta = SnapshotDelta.between(0, baseline, ++tick, capture());
+        out.clear();
+        out = codec.encode(delta, out);
+        return out;
+    }
+}
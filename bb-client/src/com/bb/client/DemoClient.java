@@ -1,7 +1,8 @@
 package com.bb.client;
 
 import com.bb.common.data.*;
-import com.bb.common.net.DataAccumulator;
+import com.bb.common.net.Codec;
+import com.bb.common.net.WireFormat;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -20,14 +21,22 @@ import java.util.List;
  */
 public class DemoClient extends JPanel implements KeyListener, MouseListener, MouseMotionListener {
     private PlayerStats myStats;
+    // Tick of the snapshot myStats came from
+    private volatile long myStatsTick = SnapshotDelta.FULL;
     private GameWorld gameWorld;
     private List<ShotFired> shots;
     private Map<String, PlayerStats> gameState;
-    private ClientKeyEvent current;
-    private ClientShotAttempt currentMouse;
-    private Point aimPt;
-    private boolean mouseDown;
-    private long lastShotAttempt;
+    private volatile Point aimPt;
+    private volatile boolean mouseDown;
+    // Movement bits for the arrow keys held down, sampled once per input tick
+    private volatile int heldButtons;
+    private LatencyEstimator latency;
+    private SnapshotBuffer snapshots;
+    private InputPredictor predictor;
+    private boolean[] keyDown = new boolean[256];
+    // The last finished frame, shown by paintComponent()
+    private BufferedImage frontBuf;
+    private final Object frameLock = new Object();
 
     public static void main(String[] args) throws IOException {
         JFrame host = new JFrame();
@@ -36,12 +45,17 @@ public class DemoClient extends JPanel implements KeyListener, MouseListener, Mo
         host.add(client);
         host.pack();
         host.setVisible(true);
-        client.startBackgroundThreads(SocketChannel.open(new InetSocketAddress(8080)));
+        // Pass "text" to talk the human readable protocol, handy when debugging
+        WireFormat format = args.length > 0 ? WireFormat.valueOf(args[0].toUpperCase()) : WireFormat.BINARY;
+        client.startBackgroundThreads(SocketChannel.open(new InetSocketAddress(8080)), format);
     }
 
     public DemoClient() {
         gameState = new HashMap<>();
         shots = new ArrayList<>();
+        latency = new LatencyEstimator();
+        snapshots = new SnapshotBuffer();
+        predictor = new InputPredictor();
 
         Dimension dim = new Dimension(800, 600);
         setSize(dim);
@@ -54,38 +68,83 @@ public class DemoClient extends JPanel implements KeyListener, MouseListener, Mo
         addMouseMotionListener(this);
     }
 
-    public void startBackgroundThreads(SocketChannel sc) {
-        new NetworkingThread(sc).start();
+    public void startBackgroundThreads(SocketChannel sc, WireFormat format) {
+        new NetworkingThread(sc, format).start();
         new RepaintThread().start();
     }
 
     private class NetworkingThread extends Thread {
-        private SocketChannel sc;
+        // How often we measure the round trip to the server
+        private static final long TIMING_INTERVAL = 1000;
+        // Input is sampled at the server's tick rate
+        private static final long INPUT_NANOS = 1000000000L / 60;
+        // How many of the latest input frames go in every packet, so one lost packet costs nothing
+        private static final int INPUT_REDUNDANCY = 4;
+        // How long to keep trying a server that has gone away, in case it is restarting
+        private static final long RECONNECT_INTERVAL = 1000;
+        private static final int RECONNECT_ATTEMPTS = 30;
 
-        private NetworkingThread(SocketChannel sc) {
+        private SocketChannel sc;
+        private InetSocketAddress server;
+        private WireFormat format;
+        private Codec dac;
+        private ByteBuffer out;
+        private SnapshotHistory history;
+        private WorldChunk.Assembler worldAssembler;
+        // Newest snapshot we have rebuilt, and the newest one we've told the server about
+        private long lastTick = SnapshotDelta.FULL;
+        private long ackedTick = SnapshotDelta.FULL;
+        // Set between following a Redirect and the new server telling us our new id
+        private boolean redirected;
+        // The token the server gave us to get our player back if it restarts
+        private Resume session;
+        private long nextTiming;
+        private long nextInput;
+        // The last few input frames, oldest first, and the sequence number of the newest one
+        private long inputSequence = -1;
+        private byte[] inputButtons = new byte[INPUT_REDUNDANCY];
+        private int[] inputAimX = new int[INPUT_REDUNDANCY];
+        private int[] inputAimY = new int[INPUT_REDUNDANCY];
+
+        private NetworkingThread(SocketChannel sc, WireFormat format) {
             this.sc = sc;
+            this.format = format;
+            this.dac = format.newCodec();
+            this.out = ByteBuffer.allocate(1024);
+            this.history = new SnapshotHistory();
+            this.worldAssembler = new WorldChunk.Assembler();
         }
 
         @Override
         public void run() {
             try {
                 System.out.println("CLIENT is now connected to the server");
+                server = (InetSocketAddress)sc.getRemoteAddress();
+                if (format == WireFormat.BINARY) {
+                    sc.write(ByteBuffer.wrap(new byte[] { WireFormat.HANDSHAKE }));
+                }
                 sc.configureBlocking(false);
-                DataAccumulator dac = new DataAccumulator();
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
 
                 while (true) {
                     Thread.sleep(5);
 
-                    readUpdatesFromServer(dac, buffer);
+                    try {
+                        readUpdatesFromServer(dac);
 
-                    processUpdatesFromServer(dac);
-                    pruneDeadShots();
+                        processUpdatesFromServer(dac);
+                        pruneDeadShots();
 
-                    sendInputUpdatesToServer();
+                        sendInputUpdatesToServer();
 
-                    if (Math.random() < .0001) {
-                        initiateTimingPacket();
+                        if (System.currentTimeMillis() >= nextTiming) {
+                            initiateTimingPacket();
+                            nextTiming = System.currentTimeMillis() + TIMING_INTERVAL;
+                        }
+                    } catch (IOException ex) {
+                        if (session == null) {
+                            throw ex;
+                        }
+                        reconnect();
                     }
                 }
             } catch (Exception ex) {
@@ -106,61 +165,236 @@ public class DemoClient extends JPanel implements KeyListener, MouseListener, Mo
         }
 
         private void sendInputUpdatesToServer() throws IOException {
-            ClientKeyEvent keyToSend = current;
-            if (keyToSend != null) {
-                sc.write(ByteBuffer.wrap((keyToSend.toString() + DataAccumulator.DELIMITER).getBytes()));
-                current = null;
+            if (lastTick > ackedTick) {
+                send(new SnapshotAck(lastTick));
+                ackedTick = lastTick;
             }
 
-            long now = System.currentTimeMillis();
-            if (mouseDown && now - lastShotAttempt > 50 && aimPt != null) {
-                ClientShotAttempt shotAttempt = new ClientShotAttempt(aimPt);
-                sc.write(ByteBuffer.wrap((shotAttempt.toString() + DataAccumulator.DELIMITER).getBytes()));
-                lastShotAttempt = now;
+            long now = System.nanoTime();
+            if (now - nextInput >= 0) {
+                // Fall behind rather than send a burst of frames after a stall
+                nextInput = Math.max(nextInput + INPUT_NANOS, now);
+                sampleInput();
+                send(recentInput());
             }
+
+            flush();
+        }
+
+        /**
+         * Shifts the history along and records what is held right now as the newest frame.
+         */
+        private void sampleInput() {
+            Point aim = aimPt;
+            boolean fire = mouseDown && aim != null;
+            System.arraycopy(inputButtons, 1, inputButtons, 0, INPUT_REDUNDANCY - 1);
+            System.arraycopy(inputAimX, 1, inputAimX, 0, INPUT_REDUNDANCY - 1);
+            System.arraycopy(inputAimY, 1, inputAimY, 0, INPUT_REDUNDANCY - 1);
+            inputButtons[INPUT_REDUNDANCY - 1] = (byte) (heldButtons | (fire ? ClientInput.FIRE : 0));
+            inputAimX[INPUT_REDUNDANCY - 1] = aim != null ? aim.x : 0;
+            inputAimY[INPUT_REDUNDANCY - 1] = aim != null ? aim.y : 0;
+            inputSequence++;
+        }
+
+        private ClientInput recentInput() {
+            int count = (int) Math.min(INPUT_REDUNDANCY, inputSequence + 1);
+            int from = INPUT_REDUNDANCY - count;
+            return new ClientInput(inputSequence - count + 1, Arrays.copyOfRange(inputButtons, from, INPUT_REDUNDANCY),
+                    Arrays.copyOfRange(inputAimX, from, INPUT_REDUNDANCY),
+                    Arrays.copyOfRange(inputAimY, from, INPUT_REDUNDANCY));
         }
 
         private void initiateTimingPacket() throws IOException {
-            sc.write(ByteBuffer.wrap((new TimingPacket() + DataAccumulator.DELIMITER).getBytes()));
+            send(new TimingPacket());
+            flush();
+        }
+
+        private void send(Object message) {
+            out = dac.encode(message, out);
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                sc.write(out);
+            }
+            out.clear();
         }
 
-        private void readUpdatesFromServer(DataAccumulator dac, ByteBuffer buffer) throws IOException {
-            int bytesRead = sc.read(buffer);
-            if (bytesRead > 0) {
-                dac.accumulate(buffer.array(), bytesRead);
-                buffer.clear();
+        private void readUpdatesFromServer(Codec dac) throws IOException {
+            int bytesRead;
+            while ((bytesRead = dac.readFrom(sc)) > 0) {
+                // Keep reading until the socket or the frame buffer runs dry
+            }
+            if (bytesRead < 0) {
+                throw new IOException("Server closed the connection");
             }
         }
 
-        private void processUpdatesFromServer(DataAccumulator dac) {
+        private void processUpdatesFromServer(Codec dac) throws IOException {
             while (dac.hasData()) {
                 Object obj = dac.getData();
                 if (obj instanceof GameWorld) {
                     gameWorld = (GameWorld)obj;
+                } else if (obj instanceof WorldChunk) {
+                    GameWorld assembled = worldAssembler.add((WorldChunk)obj);
+                    if (assembled != null) {
+                        gameWorld = assembled;
+                    }
                 } else if (obj instanceof PlayerStats) {
                     PlayerStats stats = (PlayerStats)obj;
 
                     if (myStats == null) {
                         // The first player stats sent will always be for ME
                         myStats = stats;
+                    } else if (redirected) {
+                        // Still us, but under the new server's id; where we are comes with its first snapshot
+                        myStats = new PlayerStats(stats.getPlayerId(), myStats.getX(), myStats.getY(),
+                                myStats.getHealth(), false);
+                        redirected = false;
+                        continue;
                     }
 
                     synchronized (gameState) {
                         gameState.put(stats.getPlayerId(), stats);
                     }
+                } else if (obj instanceof SnapshotDelta) {
+                    applySnapshot((SnapshotDelta)obj);
                 } else if (obj instanceof ShotFired) {
                     shots.add((ShotFired)obj);
                 } else if (obj instanceof TimingPacket) {
                     TimingPacket tp = (TimingPacket)obj;
                     tp.recordReturnTime();
-                    System.out.println("Round trip time is " + (tp.getReturnTime() - tp.getInitiatedTime()) + " ms.");
+                    latency.sample(tp);
+                    // Let the server know too, it rewinds players by this much when checking our shots
+                    send(tp);
+                } else if (obj instanceof Resume) {
+                    session = (Resume)obj;
+                } else if (obj instanceof Redirect) {
+                    // Anything after this is from the old server and no longer matters
+                    follow((Redirect)obj);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Moves over to the server now simulating our player.  Everything tied to the old server's ticks starts
+         * again, but the world and the player carry on as they were.
+         */
+        private void follow(Redirect redirect) throws IOException {
+            sc.close();
+            server = new InetSocketAddress(redirect.getHost(), redirect.getPort());
+            sc = SocketChannel.open(server);
+            if (format == WireFormat.BINARY) {
+                sc.write(ByteBuffer.wrap(new byte[] { WireFormat.HANDSHAKE }));
+            }
+            sc.configureBlocking(false);
+            dac = format.newCodec();
+            out.clear();
+            send(new Resume(redirect.getToken()));
+            flush();
+
+            history = new SnapshotHistory();
+            worldAssembler = new WorldChunk.Assembler();
+            lastTick = SnapshotDelta.FULL;
+            ackedTick = SnapshotDelta.FULL;
+            myStatsTick = SnapshotDelta.FULL;
+            snapshots.clear();
+            redirected = true;
+            System.out.println("CLIENT moved to " + redirect.getHost() + ":" + redirect.getPort());
+        }
+
+        /**
+         * Waits for the server we lost to come back, as it does after a restart, and picks up our player there.
+         */
+        private void reconnect() throws IOException, InterruptedException {
+            System.out.println("CLIENT lost the server, reconnecting");
+            for (int ii = 1; ; ii++) {
+                try {
+                    follow(new Redirect(server.getHostString(), server.getPort(), session.getToken()));
+                    return;
+                } catch (IOException ex) {
+                    if (ii == RECONNECT_ATTEMPTS) {
+                        throw ex;
+                    }
+                    Thread.sleep(RECONNECT_INTERVAL);
                 }
             }
         }
+
+        /**
+         * Rebuilds the full player state from a delta and the snapshot it was encoded against.
+         */
+        private void applySnapshot(SnapshotDelta delta) {
+            if (delta.getTick() <= lastTick) {
+                return;
+            }
+
+            Map<String, PlayerStats> base = null;
+            if (!delta.isFull()) {
+                base = history.get(delta.getBaseTick());
+                if (base == null) {
+                    // Shouldn't happen since we only ack ticks we kept; wait for a delta we can use
+                    return;
+                }
+            }
+
+            Map<String, PlayerStats> state = delta.applyTo(base);
+            history.put(delta.getTick(), state);
+            snapshots.add(delta.getTick(), state, SnapshotBuffer.now());
+            lastTick = delta.getTick();
+
+            synchronized (gameState) {
+                gameState.clear();
+                gameState.putAll(state);
+            }
+            if (myStats != null && state.containsKey(myStats.getPlayerId())) {
+                myStats = state.get(myStats.getPlayerId());
+                myStatsTick = delta.getTick();
+            }
+        }
     }
 
+    @Override
+    protected void paintComponent(Graphics g) {
+        synchronized (frameLock) {
+            if (frontBuf != null) {
+                g.drawImage(frontBuf, 0, 0, null);
+            } else {
+                super.paintComponent(g);
+            }
+        }
+    }
+
+    /**
+     * Draws frames at the display's refresh rate.  The terrain only changes with the world, so it is drawn once into
+     * a cached image covering the panel and each frame starts by copying that; only shots and players are drawn on
+     * top.  Frames are drawn into one of two reusable buffers off the event thread, and paintComponent() shows the
+     * last finished one.
+     */
     private class RepaintThread extends Thread {
-        private BufferedImage backBuf;
+        // Shots fade from red to black over this many preallocated colours
+        private static final int SHOT_SHADES = 32;
+        private static final int DEFAULT_REFRESH_RATE = 60;
+
+        private BufferedImage[] frames = new BufferedImage[2];
+        private Graphics2D[] frameGraphics = new Graphics2D[2];
+        private int drawing;
+        private BufferedImage terrain;
+        private GameWorld terrainWorld;
+        private int terrainVersion;
+        private Color[] shotColors;
+        private List<PlayerStats> positions = new ArrayList<>();
+        private List<ShotFired> shotsToDraw = new ArrayList<>();
+
+        public RepaintThread() {
+            super("repaint");
+            shotColors = new Color[SHOT_SHADES];
+            for (int ii = 0; ii < SHOT_SHADES; ii++) {
+                shotColors[ii] = new Color(1 - ii / (float)(SHOT_SHADES - 1), 0, 0);
+            }
+        }
 
         public void run() {
             BufferedImage floorImg;
@@ -169,8 +403,8 @@ public class DemoClient extends JPanel implements KeyListener, MouseListener, Mo
             BufferedImage p2Img;
 
             try {
-                p1Img = ImageIO.read(getClass().getClassLoader().getResourceAsStream("textures/player1.png"));
-                p2Img = ImageIO.read(getClass().getClassLoader().getResourceAsStream("textures/player2.png"));
+                p1Img = toCompatible(ImageIO.read(getClass().getClassLoader().getResourceAsStream("textures/player1.png")));
+                p2Img = toCompatible(ImageIO.read(getClass().getClassLoader().getResourceAsStream("textures/player2.png")));
                 floorImg = ImageIO.read(getClass().getClassLoader().getResourceAsStream("textures/floor.png"));
                 wallImg = ImageIO.read(getClass().getClassLoader().getResourceAsStream("textures/wall.png"));
             } catch (IOException ex) {
@@ -178,80 +412,190 @@ public class DemoClient extends JPanel implements KeyListener, MouseListener, Mo
                 return;
             }
 
+            long frameNanos = 1000000000L / refreshRate();
+            long nextFrame = System.nanoTime();
+
             while (true) {
-                try { Thread.sleep(5); } catch(InterruptedException intex) {}
+                if (getWidth() > 0 && getHeight() > 0) {
+                    drawFrame(floorImg, wallImg, p1Img, p2Img);
+                }
 
-                if ((backBuf == null) || backBuf.getWidth() != getWidth() || backBuf.getHeight() != getHeight()) {
-                    backBuf = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+                nextFrame += frameNanos;
+                long sleep = nextFrame - System.nanoTime();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep / 1000000, (int)(sleep % 1000000));
+                    } catch (InterruptedException intex) {}
+                } else {
+                    // Fell behind; don't try to catch up with a burst of frames
+                    nextFrame = System.nanoTime();
                 }
+            }
+        }
+
+        private int refreshRate() {
+            if (!GraphicsEnvironment.isHeadless()) {
+                int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+                if (rate != DisplayMode.REFRESH_RATE_UNKNOWN && rate > 0) {
+                    return rate;
+                }
+            }
+            return DEFAULT_REFRESH_RATE;
+        }
+
+        private BufferedImage createImage(int width, int height, int transparency) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            if (gc != null) {
+                return gc.createCompatibleImage(width, height, transparency);
+            }
+            return new BufferedImage(width, height, transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        }
+
+        private BufferedImage toCompatible(BufferedImage img) {
+            BufferedImage ret = createImage(img.getWidth(), img.getHeight(), Transparency.TRANSLUCENT);
+            Graphics2D g = ret.createGraphics();
+            g.drawImage(img, 0, 0, null);
+            g.dispose();
+            return ret;
+        }
 
-                Graphics g = backBuf.getGraphics();
+        /**
+         * Redraws the cached terrain if the world, its version or the panel size changed.  Only the part of the world
+         * that fits in the panel is cached, since nothing else is ever shown.
+         */
+        private void updateTerrain(GameWorld world, BufferedImage floorImg, BufferedImage wallImg) {
+            if (terrain != null && world == terrainWorld && world.getVersion() == terrainVersion
+                    && terrain.getWidth() == getWidth() && terrain.getHeight() == getHeight()) {
+                return;
+            }
+
+            terrain = createImage(getWidth(), getHeight(), Transparency.OPAQUE);
+            terrainWorld = world;
+            terrainVersion = world.getVersion();
+
+            Graphics2D g = terrain.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            int cellsX = Math.min(world.getSize(), getWidth() / GameWorld.CELL_SIZE + 1);
+            int cellsY = Math.min(world.getSize(), getHeight() / GameWorld.CELL_SIZE + 1);
+            for (int xx = 0; xx < cellsX; xx++) {
+                for (int yy = 0; yy < cellsY; yy++) {
+                    Image img = world.get(xx, yy) == TerrainType.OPEN ? floorImg : wallImg;
+                    g.drawImage(img, xx * GameWorld.CELL_SIZE, yy * GameWorld.CELL_SIZE, GameWorld.CELL_SIZE, GameWorld.CELL_SIZE, null);
+                }
+            }
+            g.dispose();
+        }
 
+        private void drawFrame(BufferedImage floorImg, BufferedImage wallImg, BufferedImage p1Img, BufferedImage p2Img) {
+            BufferedImage backBuf = frames[drawing];
+            if ((backBuf == null) || backBuf.getWidth() != getWidth() || backBuf.getHeight() != getHeight()) {
+                if (frameGraphics[drawing] != null) {
+                    frameGraphics[drawing].dispose();
+                }
+                backBuf = createImage(getWidth(), getHeight(), Transparency.OPAQUE);
+                frames[drawing] = backBuf;
+                frameGraphics[drawing] = backBuf.createGraphics();
+            }
+            Graphics2D g = frameGraphics[drawing];
+
+            GameWorld world = gameWorld;
+            if (world != null) {
+                updateTerrain(world, floorImg, wallImg);
+                g.drawImage(terrain, 0, 0, null);
+            } else {
                 g.setColor(Color.WHITE);
                 g.fillRect(0, 0, getWidth(), getHeight());
+            }
 
-                java.util.List<PlayerStats> positions = new ArrayList<>();
+            double now = SnapshotBuffer.now();
+            positions.clear();
+            Map<String, PlayerStats> interpolated = snapshots.sample(now - SnapshotDelta.INTERPOLATION_DELAY);
+            if (interpolated != null) {
+                positions.addAll(interpolated.values());
+            } else {
                 synchronized (gameState) {
                     positions.addAll(gameState.values());
                 }
+            }
 
-                if (gameWorld != null) {
-                    for (int xx = 0; xx < gameWorld.getSize(); xx++) {
-                        for (int yy = 0; yy < gameWorld.getSize(); yy++) {
-                            if (gameWorld.get(xx, yy) == TerrainType.OPEN) {
-                                g.setColor(Color.LIGHT_GRAY);
-                                g.drawImage(floorImg, xx * GameWorld.CELL_SIZE, yy * GameWorld.CELL_SIZE, GameWorld.CELL_SIZE, GameWorld.CELL_SIZE, null);
-                            } else {
-                                g.drawImage(wallImg, xx * GameWorld.CELL_SIZE, yy * GameWorld.CELL_SIZE, GameWorld.CELL_SIZE, GameWorld.CELL_SIZE, null);
-                            }
-                        }
+            // We're drawn where our own input says we are, not in the past with everyone else
+            PlayerStats me = myStats;
+            if (me != null) {
+                double from = (myStatsTick == SnapshotDelta.FULL) ? now : snapshots.timeOf(myStatsTick) - latency.getRtt();
+                me = predictor.predict(world, me, from, now);
+                Iterator<PlayerStats> iter = positions.iterator();
+                while (iter.hasNext()) {
+                    if (iter.next().getPlayerId().equals(me.getPlayerId())) {
+                        iter.remove();
                     }
                 }
+                positions.add(me);
+            }
 
-                List<ShotFired> shotsToDraw = new ArrayList<>();
-                synchronized (shots) {
-                    shotsToDraw.addAll(shots);
-                }
+            shotsToDraw.clear();
+            synchronized (shots) {
+                shotsToDraw.addAll(shots);
+            }
 
-                for (ShotFired sf : shotsToDraw) {
-                    if (!sf.expired()) {
-                        float age = sf.age();
-                        float ageRel = age / ShotFired.MAX_RENDER_AGE;
-                        float col = 1 - ageRel;
-                        if (col >= 0 && col <= 1) {
-                            g.setColor(new Color(col, 0, 0));
-                            g.drawLine(sf.getOrigin().x, sf.getOrigin().y, sf.getTarget().x, sf.getTarget().y);
-                        }
-                    }
+            for (ShotFired sf : shotsToDraw) {
+                long age = sf.age();
+                if (age >= 0 && age < ShotFired.MAX_RENDER_AGE) {
+                    g.setColor(shotColors[(int)(age * SHOT_SHADES / ShotFired.MAX_RENDER_AGE)]);
+                    g.drawLine(sf.getOrigin().x, sf.getOrigin().y, sf.getTarget().x, sf.getTarget().y);
                 }
+            }
 
-                for (PlayerStats player : positions) {
-                    Image pimg;
-                    if (player.getPlayerId().equals(myStats.getPlayerId())) {
-                        pimg = p1Img;
-                    } else {
-                        pimg = p2Img;
-                    }
+            for (PlayerStats player : positions) {
+                Image pimg;
+                if (me != null && player.getPlayerId().equals(me.getPlayerId())) {
+                    pimg = p1Img;
+                } else {
+                    pimg = p2Img;
+                }
 
-                    // TODO: Keep track of player facing (?) and rotate the players image
-                    g.drawImage(pimg, (int) (player.getX()) - 5, (int) (player.getY() - 5), null);
+                // TODO: Keep track of player facing (?) and rotate the players image
+                g.drawImage(pimg, (int) (player.getX()) - 5, (int) (player.getY() - 5), null);
 
-                    // TODO: Draw a health bar per player?
-                }
+                // TODO: Draw a health bar per player?
+            }
 
-                g.setColor(Color.BLACK);
-                g.drawString("Health: " + myStats.getHealth(), 15, 15);
+            g.setColor(Color.BLACK);
+            if (me != null) {
+                g.drawString("Health: " + me.getHealth(), 15, 15);
+            }
+            if (latency.hasSamples()) {
+                g.drawString("Ping: " + latency.getRtt() + " ms (+/- " + latency.getJitter() + ")", 15, 30);
+            }
 
-                if (getGraphics() != null) {
-                    getGraphics().drawImage(backBuf, 0, 0, null);
-                }
+            synchronized (frameLock) {
+                frontBuf = backBuf;
             }
+            drawing = 1 - drawing;
+            repaint();
         }
     }
 
-    public void keyPressed(KeyEvent e) { current = new ClientKeyEvent(e.getKeyCode(), true); }
+    public void keyPressed(KeyEvent e) {
+        updateKey(e.getKeyCode(), true);
+    }
     public void keyReleased(KeyEvent e) {
-        current = new ClientKeyEvent(e.getKeyCode(), false);
+        updateKey(e.getKeyCode(), false);
+    }
+
+    /**
+     * Tracks the keys held down for the next input frame and tells the predictor when the direction changes.
+     */
+    private void updateKey(int keyCode, boolean down) {
+        if (keyCode < 0 || keyCode >= keyDown.length || keyDown[keyCode] == down) {
+            return;
+        }
+        int dx = Movement.dx(keyDown), dy = Movement.dy(keyDown);
+        keyDown[keyCode] = down;
+        heldButtons = ClientInput.buttons(keyDown, false);
+        if (Movement.dx(keyDown) != dx || Movement.dy(keyDown) != dy) {
+            predictor.input(SnapshotBuffer.now(), Movement.dx(keyDown), Movement.dy(keyDown));
+        }
     }
     public void mousePressed(MouseEvent e) {
         mouseDown = true;
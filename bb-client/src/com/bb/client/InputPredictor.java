@@ -0,0 +1,69 @@
+package com.bb.client;
+
+import com.bb.common.data.GameWorld;
+import com.bb.common.data.Movement;
+import com.bb.common.data.PlayerStats;
+
+/**
+ * Predicts where the local player is by replaying its own recent input on top of the last authoritative position.
+ * Every direction change is recorded with the local time it happened.  A snapshot only reflects input the server
+ * had received when it was taken, so the prediction starts from the snapshot's position at the time that input
+ * would have been sent (about a round trip before the snapshot arrived) and moves forward from there with the
+ * shared Movement rules.  Because the prediction is recomputed from the newest snapshot every time, any
+ * disagreement with the server is corrected as soon as the next snapshot arrives.
+ *
+ * Times are in milliseconds on the same clock as SnapshotBuffer.
+ */
+public class InputPredictor {
+    public static final int SIZE = 256;
+    // Replayed in steps this long, about one server tick, so wall checks land where the server's would
+    public static final double STEP_MILLIS = 1000.0 / 60;
+
+    private double[] times = new double[SIZE];
+    private int[] dxs = new int[SIZE];
+    private int[] dys = new int[SIZE];
+    private int count;
+    private int next;
+
+    /**
+     * Records that from time on the player is moving in direction (dx, dy).
+     */
+    public synchronized void input(double time, int dx, int dy) {
+        times[next] = time;
+        dxs[next] = dx;
+        dys[next] = dy;
+        next = (next + 1) % SIZE;
+        count = Math.min(count + 1, SIZE);
+    }
+
+    /**
+     * Where the player who was at authoritative at time from should be at time now.
+     */
+    public synchronized PlayerStats predict(GameWorld world, PlayerStats authoritative, double from, double now) {
+        PlayerStats ret = new PlayerStats(authoritative.getPlayerId(), authoritative.getX(), authoritative.getY(),
+                authoritative.getHealth(), authoritative.isBot());
+        if (count == 0 || world == null) {
+            return ret;
+        }
+
+        int oldest = (next - count + SIZE) % SIZE;
+        double distancePerMs = Movement.PLAYER_SPEED / 1000;
+        double time = from;
+        while (time < now) {
+            double step = Math.min(STEP_MILLIS, now - time);
+            // Direction in effect at this time: the latest input not after it
+            int dx = 0, dy = 0;
+            for (int ii = 0; ii < count; ii++) {
+                int idx = (oldest + ii) % SIZE;
+                if (times[idx] > time) {
+                    break;
+                }
+                dx = dxs[idx];
+                dy = dys[idx];
+            }
+            Movement.move(world, ret, dx, dy, step * distancePerMs);
+            time += step;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,378 @@
+package com.bb.client;
+
+import com.bb.common.data.*;
+import com.bb.common.net.Codec;
+import com.bb.common.net.WireFormat;
+
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Headless load test: opens many connections to a DemoServer from one process and plays each of them like a
+ * client would.  Every simulated player acks its snapshots, moves and fires according to a Behaviour, and sends a
+ * TimingPacket once a second.  Once a second the generator prints message and byte rates in both directions and
+ * the round trip time percentiles for that second.
+ *
+ * Everything runs on one thread over a single Selector, so thousands of players cost thousands of sockets, not
+ * thousands of threads.
+ */
+public class LoadGenerator {
+    public static final int DEFAULT_PORT = 8080;
+    // How often each player decides what to do next
+    public static final long STEP_MILLIS = 50;
+    public static final long TIMING_INTERVAL = 1000;
+    public static final long REPORT_INTERVAL = 1000;
+    // Round trips are bucketed by millisecond up to this, with everything slower in the last bucket
+    public static final int MAX_RTT = 2000;
+
+    private static final int[] KEYS = new int[] { KeyEvent.VK_UP, KeyEvent.VK_RIGHT, KeyEvent.VK_DOWN, KeyEvent.VK_LEFT };
+
+    /**
+     * How simulated players move and shoot.  RANDOM changes direction and fires at random, SQUARE walks a fixed
+     * square and fires ahead of itself on a steady beat, which makes runs repeatable.
+     */
+    public enum Behaviour {
+        RANDOM,
+        SQUARE
+    }
+
+    private InetSocketAddress address;
+    private WireFormat format;
+    private Behaviour behaviour;
+    private Selector selector;
+    private List<SimulatedPlayer> players;
+    private Random random;
+
+    // Totals since the last report
+    private long messagesIn, bytesIn, messagesOut, bytesOut;
+    private long[] rttHistogram;
+    private int disconnects;
+    private int redirects;
+
+    /**
+     * Arguments: [players] [seconds] [text|binary] [random|square] [host] [port]
+     */
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        WireFormat format = args.length > 2 ? WireFormat.valueOf(args[2].toUpperCase()) : WireFormat.BINARY;
+        Behaviour behaviour = args.length > 3 ? Behaviour.valueOf(args[3].toUpperCase()) : Behaviour.RANDOM;
+        String host = args.length > 4 ? args[4] : "localhost";
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_PORT;
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port), format, behaviour);
+        generator.connect(count);
+        generator.run(seconds * 1000L);
+    }
+
+    public LoadGenerator(InetSocketAddress address, WireFormat format, Behaviour behaviour) throws IOException {
+        this.address = address;
+        this.format = format;
+        this.behaviour = behaviour;
+        this.selector = Selector.open();
+        this.players = new ArrayList<>();
+        this.random = new Random();
+        this.rttHistogram = new long[MAX_RTT + 1];
+    }
+
+    public void connect(int count) throws IOException {
+        for (int ii = 0; ii < count; ii++) {
+            SocketChannel sc = SocketChannel.open(address);
+            sc.socket().setTcpNoDelay(true);
+            if (format == WireFormat.BINARY) {
+                sc.write(ByteBuffer.wrap(new byte[] { WireFormat.HANDSHAKE }));
+            }
+            sc.configureBlocking(false);
+
+            SimulatedPlayer player = new SimulatedPlayer(sc, ii);
+            player.key = sc.register(selector, SelectionKey.OP_READ, player);
+            players.add(player);
+        }
+        System.out.println("Connected " + count + " " + format + " players to " + address);
+    }
+
+    public void run(long durationMillis) throws IOException {
+        long now = System.currentTimeMillis();
+        long end = now + durationMillis;
+        long nextReport = now + REPORT_INTERVAL;
+
+        while (now < end && !players.isEmpty()) {
+            selector.select(STEP_MILLIS / 5);
+
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                SimulatedPlayer player = (SimulatedPlayer)key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        player.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        player.flush();
+                    }
+                } catch (IOException ex) {
+                    player.close();
+                }
+            }
+
+            now = System.currentTimeMillis();
+            Iterator<SimulatedPlayer> piter = players.iterator();
+            while (piter.hasNext()) {
+                SimulatedPlayer player = piter.next();
+                if (!player.key.isValid()) {
+                    piter.remove();
+                    continue;
+                }
+                try {
+                    player.step(now);
+                    player.flush();
+                } catch (IOException ex) {
+                    player.close();
+                    piter.remove();
+                }
+            }
+
+            if (now >= nextReport) {
+                report(now - nextReport + REPORT_INTERVAL);
+                nextReport = now + REPORT_INTERVAL;
+            }
+        }
+
+        for (SimulatedPlayer player : players) {
+            player.close();
+        }
+        selector.close();
+    }
+
+    private void report(long elapsed) {
+        double seconds = elapsed / 1000.0;
+        System.out.printf("players=%d in: %.0f msg/s %.1f KB/s  out: %.0f msg/s %.1f KB/s  rtt ms: %s  disconnects=%d"
+                + " redirects=%d%n", players.size(), messagesIn / seconds, bytesIn / seconds / 1024,
+                messagesOut / seconds, bytesOut / seconds / 1024, rttSummary(), disconnects, redirects);
+        messagesIn = bytesIn = messagesOut = bytesOut = 0;
+        Arrays.fill(rttHistogram, 0);
+    }
+
+    private String rttSummary() {
+        long total = 0;
+        for (long count : rttHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return "n/a";
+        }
+        return "p50=" + percentile(total, 0.50) + " p90=" + percentile(total, 0.90) + " p99="
+                + percentile(total, 0.99) + " max=" + percentile(total, 1.0) + " (n=" + total + ")";
+    }
+
+    private String percentile(long total, double fraction) {
+        long rank = Math.max(1, (long)Math.ceil(total * fraction));
+        long seen = 0;
+        for (int ii = 0; ii < rttHistogram.length; ii++) {
+            seen += rttHistogram[ii];
+            if (seen >= rank) {
+                return ii == MAX_RTT ? ">" + MAX_RTT : Integer.toString(ii);
+            }
+        }
+        return "?";
+    }
+
+    private class SimulatedPlayer {
+        private SocketChannel sc;
+        private SelectionKey key;
+        private Codec dac;
+        private ByteBuffer out;
+        private SnapshotHistory history;
+        private PlayerStats myStats;
+        private long lastTick = SnapshotDelta.FULL;
+        private long ackedTick = SnapshotDelta.FULL;
+        // Following a Redirect, until the new server tells us our new id
+        private boolean redirected;
+
+        private int heldKey = -1;
+        private int squareSide;
+        private long nextStep;
+        private long nextTiming;
+
+        private SimulatedPlayer(SocketChannel sc, int index) {
+            this.sc = sc;
+            this.dac = format.newCodec();
+            this.out = ByteBuffer.allocate(1024);
+            this.history = new SnapshotHistory();
+            // Spread everyone's timers out so they don't all fire on the same pass
+            long now = System.currentTimeMillis();
+            this.nextStep = now + random.nextInt((int)STEP_MILLIS);
+            this.nextTiming = now + random.nextInt((int)TIMING_INTERVAL);
+            this.squareSide = index % KEYS.length;
+        }
+
+        private void read() throws IOException {
+            int bytesRead;
+            while ((bytesRead = dac.readFrom(sc)) > 0) {
+                bytesIn += bytesRead;
+            }
+            if (bytesRead < 0) {
+                throw new IOException("Connection closed by server");
+            }
+
+            while (dac.hasData()) {
+                Object obj = dac.getData();
+                messagesIn++;
+                if (obj instanceof PlayerStats) {
+                    if (myStats == null || redirected) {
+                        myStats = (PlayerStats)obj;
+                        redirected = false;
+                    }
+                } else if (obj instanceof Redirect) {
+                    follow((Redirect)obj);
+                    return;
+                } else if (obj instanceof SnapshotDelta) {
+                    applySnapshot((SnapshotDelta)obj);
+                } else if (obj instanceof TimingPacket) {
+                    TimingPacket tp = (TimingPacket)obj;
+                    tp.recordReturnTime();
+                    long rtt = tp.getReturnTime() - tp.getInitiatedTime();
+                    rttHistogram[(int)Math.max(0, Math.min(MAX_RTT, rtt))]++;
+                    send(tp);
+                }
+            }
+        }
+
+        /**
+         * Reconnects to the server our player was handed to and picks it up there.
+         */
+        private void follow(Redirect redirect) throws IOException {
+            key.cancel();
+            sc.close();
+            sc = SocketChannel.open(new InetSocketAddress(redirect.getHost(), redirect.getPort()));
+            sc.socket().setTcpNoDelay(true);
+            if (format == WireFormat.BINARY) {
+                sc.write(ByteBuffer.wrap(new byte[] { WireFormat.HANDSHAKE }));
+            }
+            sc.configureBlocking(false);
+            key = sc.register(selector, SelectionKey.OP_READ, this);
+
+            dac = format.newCodec();
+            out.clear();
+            history = new SnapshotHistory();
+            lastTick = SnapshotDelta.FULL;
+            ackedTick = SnapshotDelta.FULL;
+            heldKey = -1;
+            redirected = true;
+            send(new Resume(redirect.getToken()));
+            redirects++;
+        }
+
+        /**
+         * Only rebuilds enough to know which ticks can be acked and where we are.
+         */
+        private void applySnapshot(SnapshotDelta delta) {
+            if (delta.getTick() <= lastTick) {
+                return;
+            }
+            Map<String, PlayerStats> base = null;
+            if (!delta.isFull()) {
+                base = history.get(delta.getBaseTick());
+                if (base == null) {
+                    return;
+                }
+            }
+            Map<String, PlayerStats> state = delta.applyTo(base);
+            history.put(delta.getTick(), state);
+            lastTick = delta.getTick();
+            if (myStats != null && state.containsKey(myStats.getPlayerId())) {
+                myStats = state.get(myStats.getPlayerId());
+            }
+        }
+
+        private void step(long now) {
+            if (lastTick > ackedTick) {
+                send(new SnapshotAck(lastTick));
+                ackedTick = lastTick;
+            }
+
+            if (now >= nextTiming) {
+                send(new TimingPacket());
+                nextTiming = now + TIMING_INTERVAL;
+            }
+
+            if (now < nextStep || myStats == null) {
+                return;
+            }
+            nextStep = now + STEP_MILLIS;
+
+            if (behaviour == Behaviour.RANDOM) {
+                if (random.nextInt(10) == 0) {
+                    hold(KEYS[random.nextInt(KEYS.length)]);
+                }
+                if (random.nextInt(4) == 0) {
+                    aimAt(myStats.getX() + random.nextInt(400) - 200, myStats.getY() + random.nextInt(400) - 200);
+                }
+            } else {
+                // A second along each side, firing the way we're walking every 200 ms
+                int side = (int)((now / 1000 + squareSide) % KEYS.length);
+                hold(KEYS[side]);
+                if ((now / STEP_MILLIS) % 4 == 0) {
+                    int dx = side == 1 ? 1 : side == 3 ? -1 : 0;
+                    int dy = side == 2 ? 1 : side == 0 ? -1 : 0;
+                    aimAt(myStats.getX() + dx * 100, myStats.getY() + dy * 100);
+                }
+            }
+        }
+
+        private void hold(int keyCode) {
+            if (keyCode == heldKey) {
+                return;
+            }
+            if (heldKey >= 0) {
+                send(new ClientKeyEvent(heldKey, false));
+            }
+            send(new ClientKeyEvent(keyCode, true));
+            heldKey = keyCode;
+        }
+
+        private void aimAt(double x, double y) {
+            send(new ClientShotAttempt(new Point((int)x, (int)y)));
+        }
+
+        private void send(Object message) {
+            out = dac.encode(message, out);
+            messagesOut++;
+        }
+
+        /**
+         * Writes what the socket will take and waits for OP_WRITE if it won't take everything.
+         */
+        private void flush() throws IOException {
+            if (out.position() == 0) {
+                return;
+            }
+            out.flip();
+            bytesOut += sc.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void close() {
+            if (!key.isValid()) {
+                return;
+            }
+            disconnects++;
+            key.cancel();
+            try {
+                sc.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
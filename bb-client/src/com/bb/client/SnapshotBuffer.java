@@ -0,0 +1,120 @@
+package com.bb.client;
+
+import com.bb.common.data.PlayerStats;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The last few authoritative snapshots, for drawing other players a fixed delay in the past by interpolating between
+ * the two snapshots either side of the time being drawn.
+ *
+ * Snapshots carry server ticks rather than times, so the buffer learns how ticks map onto the local clock: the tick
+ * length comes from the spread of ticks and arrival times seen so far, and the mapping is pinned to the snapshot that
+ * arrived soonest after being sent (the one least delayed by the network).  Times are in milliseconds from
+ * System.nanoTime().
+ */
+public class SnapshotBuffer {
+    public static final int SIZE = 32;
+
+    private long[] ticks = new long[SIZE];
+    private double[] arrivals = new double[SIZE];
+    private Object[] states = new Object[SIZE];
+    private int count;
+    private int next;
+
+    private long firstTick;
+    private double firstArrival;
+    private double msPerTick;
+
+    public static double now() {
+        return System.nanoTime() / 1e6;
+    }
+
+    /**
+     * Forgets every snapshot, for when ticks start coming from a different server.  The tick length is kept.
+     */
+    public synchronized void clear() {
+        Arrays.fill(states, null);
+        count = 0;
+        next = 0;
+    }
+
+    public synchronized void add(long tick, Map<String, PlayerStats> state, double arrival) {
+        if (count == 0) {
+            firstTick = tick;
+            firstArrival = arrival;
+        } else if (tick > firstTick) {
+            // Over a long enough span the network delays average out and this converges on the server's tick length
+            msPerTick = (arrival - firstArrival) / (tick - firstTick);
+        }
+        ticks[next] = tick;
+        arrivals[next] = arrival;
+        states[next] = state;
+        next = (next + 1) % SIZE;
+        count = Math.min(count + 1, SIZE);
+    }
+
+    /**
+     * Local time the given tick is reckoned to have happened at, as seen through the least delayed snapshot.
+     */
+    public synchronized double timeOf(long tick) {
+        double offset = Double.MAX_VALUE;
+        for (int ii = 0; ii < count; ii++) {
+            offset = Math.min(offset, arrivals[ii] - ticks[ii] * msPerTick);
+        }
+        return tick * msPerTick + offset;
+    }
+
+    /**
+     * Everyone's positions at the given local time, interpolated between the snapshots either side of it.  Before
+     * the oldest snapshot the oldest is used, and past the newest the newest is used as is.  Returns null if there
+     * are no snapshots yet.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, PlayerStats> sample(double time) {
+        if (count == 0) {
+            return null;
+        }
+
+        // Newest snapshot at or before time, and oldest one after it
+        int before = -1, after = -1;
+        for (int ii = 0; ii < count; ii++) {
+            double at = timeOf(ticks[ii]);
+            if (at <= time && (before < 0 || ticks[ii] > ticks[before])) {
+                before = ii;
+            }
+            if (at > time && (after < 0 || ticks[ii] < ticks[after])) {
+                after = ii;
+            }
+        }
+        if (before < 0) {
+            return (Map<String, PlayerStats>)states[after];
+        }
+        if (after < 0) {
+            return (Map<String, PlayerStats>)states[before];
+        }
+
+        Map<String, PlayerStats> from = (Map<String, PlayerStats>)states[before];
+        Map<String, PlayerStats> to = (Map<String, PlayerStats>)states[after];
+        double start = timeOf(ticks[before]);
+        double alpha = (time - start) / (timeOf(ticks[after]) - start);
+
+        // Only players in the older snapshot are drawn, so someone who has just appeared waits until their first
+        // snapshot is reached rather than popping in early
+        Map<String, PlayerStats> ret = new HashMap<>();
+        for (PlayerStats pp : from.values()) {
+            PlayerStats target = to.get(pp.getPlayerId());
+            if (target == null) {
+                ret.put(pp.getPlayerId(), pp);
+            } else {
+                ret.put(pp.getPlayerId(), new PlayerStats(pp.getPlayerId(),
+                        pp.getX() + (target.getX() - pp.getX()) * alpha,
+                        pp.getY() + (target.getY() - pp.getY()) * alpha,
+                        pp.getHealth(), pp.isBot()));
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,156 @@
+package com.bb.common.data;
+
+import java.awt.event.KeyEvent;
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The client's input for a run of consecutive client ticks.  Each frame is the buttons held during that tick as a
+ * bitmask plus where the mouse was pointing.  The client sends its last few frames every tick, so a lost or late
+ * packet is covered by the next one and the server throws away any frame it has already seen.
+ */
+public class ClientInput {
+    private static final String PREFIX = "ClientInput";
+    public static final byte TYPE = 10;
+
+    public static final int UP = 1;
+    public static final int DOWN = 2;
+    public static final int LEFT = 4;
+    public static final int RIGHT = 8;
+    public static final int FIRE = 16;
+    public static final int MOVEMENT = UP | DOWN | LEFT | RIGHT;
+
+    // Sequence number of the first frame, the rest follow on one at a time
+    private long firstSequence;
+    private byte[] buttons;
+    private int[] aimX;
+    private int[] aimY;
+
+    public ClientInput(long firstSequence, byte[] buttons, int[] aimX, int[] aimY) {
+        this.firstSequence = firstSequence;
+        this.buttons = buttons;
+        this.aimX = aimX;
+        this.aimY = aimY;
+    }
+
+    /**
+     * The movement bits for the arrow keys held down, with FIRE added if fire is set.
+     */
+    public static int buttons(boolean[] keyDown, boolean fire) {
+        int ret = 0;
+        if (keyDown[KeyEvent.VK_UP]) {
+            ret |= UP;
+        }
+        if (keyDown[KeyEvent.VK_DOWN]) {
+            ret |= DOWN;
+        }
+        if (keyDown[KeyEvent.VK_LEFT]) {
+            ret |= LEFT;
+        }
+        if (keyDown[KeyEvent.VK_RIGHT]) {
+            ret |= RIGHT;
+        }
+        if (fire) {
+            ret |= FIRE;
+        }
+        return ret;
+    }
+
+    /**
+     * The button bit for an arrow key, or 0 for any other key.
+     */
+    public static int button(int keyCode) {
+        switch (keyCode) {
+            case KeyEvent.VK_UP: return UP;
+            case KeyEvent.VK_DOWN: return DOWN;
+            case KeyEvent.VK_LEFT: return LEFT;
+            case KeyEvent.VK_RIGHT: return RIGHT;
+            default: return 0;
+        }
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    public long getLastSequence() {
+        return firstSequence + buttons.length - 1;
+    }
+
+    public int getFrameCount() {
+        return buttons.length;
+    }
+
+    public int getButtons(int frame) {
+        return buttons[frame] & 0xFF;
+    }
+
+    public int getAimX(int frame) {
+        return aimX[frame];
+    }
+
+    public int getAimY(int frame) {
+        return aimY[frame];
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        StringBuilder sb = new StringBuilder(PREFIX).append("{").append(firstSequence);
+        for (int ii = 0; ii < buttons.length; ii++) {
+            sb.append(";").append(getButtons(ii)).append(",").append(aimX[ii]).append(",").append(aimY[ii]);
+        }
+        return sb.append("}").toString();
+    }
+    public static ClientInput parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                String[] frames = m.group(1).split(";");
+                int count = frames.length - 1;
+                byte[] buttons = new byte[count];
+                int[] aimX = new int[count];
+                int[] aimY = new int[count];
+                for (int ii = 0; ii < count; ii++) {
+                    String[] parts = frames[ii + 1].split(",");
+                    buttons[ii] = (byte) Integer.parseInt(parts[0]);
+                    aimX[ii] = Integer.parseInt(parts[1]);
+                    aimY[ii] = Integer.parseInt(parts[2]);
+                }
+                return new ClientInput(Long.parseLong(frames[0]), buttons, aimX, aimY);
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        return 8 + 1 + buttons.length * (1 + 4 + 4);
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putLong(firstSequence);
+        buf.put((byte) buttons.length);
+        for (int ii = 0; ii < buttons.length; ii++) {
+            buf.put(buttons[ii]);
+            buf.putInt(aimX[ii]);
+            buf.putInt(aimY[ii]);
+        }
+    }
+
+    public static ClientInput read(ByteBuffer buf) {
+        long firstSequence = buf.getLong();
+        int count = buf.get() & 0xFF;
+        byte[] buttons = new byte[count];
+        int[] aimX = new int[count];
+        int[] aimY = new int[count];
+        for (int ii = 0; ii < count; ii++) {
+            buttons[ii] = buf.get();
+            aimX[ii] = buf.getInt();
+            aimY[ii] = buf.getInt();
+        }
+        return new ClientInput(firstSequence, buttons, aimX, aimY);
+    }
+}
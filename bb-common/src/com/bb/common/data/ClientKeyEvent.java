@@ -1,5 +1,6 @@
 package com.bb.common.data;
 
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -8,6 +9,7 @@ import java.util.regex.Pattern;
  */
 public class ClientKeyEvent {
     private static final String PREFIX = "ClientKeyEvent";
+    public static final byte TYPE = 3;
 
     private int keyCode;
     private boolean down;
@@ -45,4 +47,19 @@ public class ClientKeyEvent {
         }
         return null;
     }
+
+    public int encodedLength() {
+        return 4 + 1;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putInt(keyCode);
+        buf.put(down ? (byte)1 : (byte)0);
+    }
+
+    public static ClientKeyEvent read(ByteBuffer buf) {
+        int keyCode = buf.getInt();
+        boolean isDown = buf.get() != 0;
+        return new ClientKeyEvent(keyCode, isDown);
+    }
 }
@@ -1,6 +1,7 @@
 package com.bb.common.data;
 
 import java.awt.*;
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -9,6 +10,7 @@ import java.util.regex.Pattern;
  */
 public class ClientShotAttempt {
     private static final String PREFIX = "ClientShotAttempt";
+    public static final byte TYPE = 4;
     private Point aimPt;
 
 
@@ -41,4 +43,19 @@ public class ClientShotAttempt {
         }
         return null;
     }
+
+    public int encodedLength() {
+        return 4 + 4;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putInt(aimPt.x);
+        buf.putInt(aimPt.y);
+    }
+
+    public static ClientShotAttempt read(ByteBuffer buf) {
+        int x = buf.getInt();
+        int y = buf.getInt();
+        return new ClientShotAttempt(new Point(x, y));
+    }
 }
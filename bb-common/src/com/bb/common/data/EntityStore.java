@@ -0,0 +1,154 @@
+package com.bb.common.data;
+
+import java.util.Arrays;
+
+/**
+ * Player state kept as parallel primitive arrays indexed by a dense int handle.  Freed handles go on a free list
+ * and are reused, with a generation counter so a reused slot gets a new player id.  Scanning every entity is a
+ * walk over a few arrays rather than a chase through boxed objects in a hash map.
+ *
+ * Nothing here is synchronized: growing the arrays would lose writes made through the old ones, so a store must only
+ * ever be used from one thread at a time.  On the server that is its room's tick.
+ */
+public class EntityStore {
+    public static final int NO_HANDLE = -1;
+
+    private double[] xs;
+    private double[] ys;
+    private int[] healths;
+    private boolean[] bots;
+    private boolean[] alive;
+    private int[] generations;
+    private String[] ids;
+    private int[] freeList;
+    private int freeCount;
+    // Every handle ever handed out is below this
+    private int highWater;
+    private int count;
+
+    public EntityStore() {
+        this(1024);
+    }
+
+    public EntityStore(int capacity) {
+        xs = new double[capacity];
+        ys = new double[capacity];
+        healths = new int[capacity];
+        bots = new boolean[capacity];
+        alive = new boolean[capacity];
+        generations = new int[capacity];
+        ids = new String[capacity];
+        freeList = new int[capacity];
+    }
+
+    public int allocate(double x, double y, int health, boolean bot) {
+        int handle;
+        if (freeCount > 0) {
+            handle = freeList[--freeCount];
+            generations[handle]++;
+        } else {
+            if (highWater == xs.length) {
+                grow();
+            }
+            handle = highWater++;
+        }
+
+        xs[handle] = x;
+        ys[handle] = y;
+        healths[handle] = health;
+        bots[handle] = bot;
+        ids[handle] = handle + "." + generations[handle];
+        alive[handle] = true;
+        count++;
+        return handle;
+    }
+
+    public void free(int handle) {
+        if (handle < 0 || handle >= highWater || !alive[handle]) {
+            return;
+        }
+        alive[handle] = false;
+        ids[handle] = null;
+        freeList[freeCount++] = handle;
+        count--;
+    }
+
+    private void grow() {
+        int capacity = xs.length * 2;
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        healths = Arrays.copyOf(healths, capacity);
+        bots = Arrays.copyOf(bots, capacity);
+        alive = Arrays.copyOf(alive, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        freeList = Arrays.copyOf(freeList, capacity);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Upper bound (exclusive) on live handles, for scans of the form: for (h = 0; h < highWater(); h++) if (isAlive(h))
+     */
+    public int highWater() {
+        return highWater;
+    }
+
+    public boolean isAlive(int handle) {
+        return handle >= 0 && handle < highWater && alive[handle];
+    }
+
+    public int getGeneration(int handle) {
+        return generations[handle];
+    }
+
+    public String getId(int handle) {
+        return ids[handle];
+    }
+
+    public double getX(int handle) {
+        return xs[handle];
+    }
+
+    public void setX(int handle, double x) {
+        xs[handle] = x;
+    }
+
+    public double getY(int handle) {
+        return ys[handle];
+    }
+
+    public void setY(int handle, double y) {
+        ys[handle] = y;
+    }
+
+    public int getHealth(int handle) {
+        return healths[handle];
+    }
+
+    public void setHealth(int handle, int health) {
+        healths[handle] = health;
+    }
+
+    public boolean isBot(int handle) {
+        return bots[handle];
+    }
+
+    /**
+     * A PlayerStats that reads and writes this store's slot directly.
+     */
+    public PlayerStats view(int handle) {
+        return new PlayerStats(this, handle);
+    }
+
+    /**
+     * A detached PlayerStats holding the slot's current values, which later changes to the slot don't affect.
+     */
+    public PlayerStats copy(int handle) {
+        PlayerStats ret = new PlayerStats(ids[handle], xs[handle], ys[handle], healths[handle], bots[handle]);
+        ret.setHandle(handle);
+        return ret;
+    }
+}
@@ -1,33 +1,134 @@
 package com.bb.common.data;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * The terrain grid.  Cells are bit-packed, BITS_PER_CELL bits each, into longs in the order cell (x, y) is at
+ * x * size + y.  The backing store can be an ordinary heap buffer or a memory-mapped file (see load and save).
+ */
 public class GameWorld {
     public static final int CELL_SIZE = 15;
+    public static final int BITS_PER_CELL = Math.max(1, 32 - Integer.numberOfLeadingZeros(TerrainType.values().length - 1));
+
+    private static final int FILE_MAGIC = 0x4242574d;
+    private static final int FILE_HEADER_LENGTH = 16;
+    private static final long CELL_MASK = (1L << BITS_PER_CELL) - 1;
+    private static final TerrainType[] TYPES = TerrainType.values();
 
     private int size;
-    private TerrainType[][] grid;
+    // Little endian, so the bytes underneath are packed lowest bit first in cell order, same as getEncoded()
+    private ByteBuffer bytes;
+    private LongBuffer cells;
+    // Bumped on every terrain change so cached encodings know when they are stale
+    private int version;
+    private byte[] encoded;
+    private int encodedVersion;
     private static final String PREFIX = "GameWorld";
+    public static final byte TYPE = 6;
 
     public GameWorld(int size) {
+        // Zeroed memory is all OPEN, which is TerrainType ordinal 0
+        this(size, ByteBuffer.allocate(storageLength(size)));
+    }
+
+    private GameWorld(int size, ByteBuffer bytes) {
         this.size = size;
-        grid = new TerrainType[size][size];
-        for (int ii = 0; ii < size; ii++) {
-            for (int jj = 0; jj < size; jj++) {
-                grid[ii][jj] = TerrainType.OPEN;
+        this.bytes = bytes.order(ByteOrder.LITTLE_ENDIAN);
+        this.cells = this.bytes.asLongBuffer();
+    }
+
+    private static int storageLength(int size) {
+        long cellBits = (long)size * size * BITS_PER_CELL;
+        return (int)((cellBits + 63) / 64 * 8);
+    }
+
+    /**
+     * Maps a world saved with save() straight from disk.  Nothing is read up front, so even huge maps load
+     * instantly, and the pages are shared with any other process that maps the same file.  The returned world is
+     * read-only: set() and populateRandomWalls() will throw.
+     */
+    public static GameWorld load(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until we have the whole header
+            }
+            header.flip();
+            if (header.remaining() < FILE_HEADER_LENGTH || header.getInt() != FILE_MAGIC) {
+                throw new IOException(file + " is not a saved GameWorld");
+            }
+            int size = header.getInt();
+            if (header.getInt() != BITS_PER_CELL) {
+                throw new IOException(file + " was saved with a different number of terrain types");
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, FILE_HEADER_LENGTH, storageLength(size));
+            return new GameWorld(size, mapped);
+        }
+    }
+
+    /**
+     * Writes the world to file in the layout load() maps.
+     */
+    public synchronized void save(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+            header.putInt(FILE_MAGIC).putInt(size).putInt(BITS_PER_CELL).putInt(0).flip();
+            channel.write(header, 0);
+            ByteBuffer body = bytes.duplicate();
+            body.clear();
+            long pos = FILE_HEADER_LENGTH;
+            while (body.hasRemaining()) {
+                pos += channel.write(body, pos);
             }
         }
     }
 
+    public boolean isReadOnly() {
+        return bytes.isReadOnly();
+    }
+
     public void populateRandomWalls() {
         for (int ii=0; ii<size; ii++) {
             int xx = (int)(Math.random() * size);
             int yy = (int)(Math.random() * size);
-            grid[xx][yy] = TerrainType.WALL;
+            setCell(xx, yy, TerrainType.WALL);
+        }
+        version++;
+    }
+
+    public void set(int x, int y, TerrainType type) {
+        if (isValid(x, y) && get(x, y) != type) {
+            setCell(x, y, type);
+            version++;
         }
     }
 
+    private void setCell(int x, int y, TerrainType type) {
+        long bit = ((long)x * size + y) * BITS_PER_CELL;
+        int word = (int)(bit >>> 6);
+        int shift = (int)(bit & 63);
+        cells.put(word, (cells.get(word) & ~(CELL_MASK << shift)) | ((long)type.ordinal() << shift));
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
     public int getSize() {
         return size;
     }
@@ -36,7 +137,8 @@ public class GameWorld {
         if (!isValid(x, y)) {
             return TerrainType.WALL;
         }
-        return grid[x][y];
+        long bit = ((long)x * size + y) * BITS_PER_CELL;
+        return TYPES[(int)((cells.get((int)(bit >>> 6)) >>> (bit & 63)) & CELL_MASK)];
     }
 
     private boolean isValid(int x, int y) {
@@ -50,7 +152,7 @@ public class GameWorld {
         bld.append(size).append(",");
         for (int ii = 0; ii < size; ii++) {
             for (int jj = 0; jj < size; jj++) {
-                bld.append(grid[ii][jj]).append(",");
+                bld.append(get(ii, jj)).append(",");
             }
         }
         bld.append("}");
@@ -75,7 +177,7 @@ public class GameWorld {
                 GameWorld ret = new GameWorld(size);
                 for (int idx=1; idx< parts.length; idx++) {
                     TerrainType type = TerrainType.valueOf(parts[idx]);
-                    ret.grid[ii][jj] = type;
+                    ret.setCell(ii, jj, type);
 
                     jj++;
                     if (jj >= size) {
@@ -89,4 +191,94 @@ public class GameWorld {
         }
         return null;
     }
+
+    public int encodedLength() {
+        return 4 + size * size;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putInt(size);
+        for (int ii = 0; ii < size; ii++) {
+            for (int jj = 0; jj < size; jj++) {
+                buf.put((byte)get(ii, jj).ordinal());
+            }
+        }
+    }
+
+    public static GameWorld read(ByteBuffer buf) {
+        GameWorld ret = new GameWorld(buf.getInt());
+        for (int ii = 0; ii < ret.size; ii++) {
+            for (int jj = 0; jj < ret.size; jj++) {
+                ret.setCell(ii, jj, TYPES[buf.get()]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the compact encoding of the terrain: the bit-packed cells, deflated.  It is built once per version and
+     * shared, so callers must not modify it.
+     */
+    public synchronized byte[] getEncoded() {
+        if (encoded == null || encodedVersion != version) {
+            encoded = encode();
+            encodedVersion = version;
+        }
+        return encoded;
+    }
+
+    private static int packedLength(int size) {
+        return (int)(((long)size * size * BITS_PER_CELL + 7) / 8);
+    }
+
+    private byte[] encode() {
+        int length = packedLength(size);
+        byte[] packed;
+        int offset;
+        if (bytes.hasArray()) {
+            packed = bytes.array();
+            offset = bytes.arrayOffset();
+        } else {
+            // Memory-mapped, so copy the cells out once
+            packed = new byte[length];
+            offset = 0;
+            ByteBuffer src = bytes.duplicate();
+            src.clear();
+            src.get(packed);
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(packed, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuilds a world of the given size from the output of getEncoded().
+     */
+    public static GameWorld decode(int size, byte[] data, int length) {
+        GameWorld ret = new GameWorld(size);
+        byte[] packed = ret.bytes.array();
+        int packedLength = packedLength(size);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(data, 0, length);
+        try {
+            int done = 0;
+            while (done < packedLength && !inflater.finished()) {
+                done += inflater.inflate(packed, done, packedLength - done);
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Corrupt world encoding", ex);
+        } finally {
+            inflater.end();
+        }
+        return ret;
+    }
 }
@@ -0,0 +1,75 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Server to server: a player is moving over to the receiving server, which should hold on to it until a client
+ * turns up with a Resume carrying the same token.
+ */
+public class Handoff {
+    private static final String PREFIX = "Handoff";
+    public static final byte TYPE = 13;
+
+    private long token;
+    private double x, y;
+    private int health;
+
+    public Handoff(long token, double x, double y, int health) {
+        this.token = token;
+        this.x = x;
+        this.y = y;
+        this.health = health;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public int getHealth() {
+        return health;
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        return PREFIX + "{" + token + "," + x + "," + y + "," + health + "}";
+    }
+    public static Handoff parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                String[] parts = m.group(1).split(",");
+                return new Handoff(Long.parseLong(parts[0]), Double.parseDouble(parts[1]),
+                        Double.parseDouble(parts[2]), Integer.parseInt(parts[3]));
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        return 8 + 8 + 8 + 4;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putLong(token);
+        buf.putDouble(x);
+        buf.putDouble(y);
+        buf.putInt(health);
+    }
+
+    public static Handoff read(ByteBuffer buf) {
+        return new Handoff(buf.getLong(), buf.getDouble(), buf.getDouble(), buf.getInt());
+    }
+}
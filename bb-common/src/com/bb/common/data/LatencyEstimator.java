@@ -0,0 +1,89 @@
+package com.bb.common.data;
+
+/**
+ * Running estimates of round trip time, jitter and clock offset built from completed TimingPackets.  Both ends keep
+ * one per connection and feed it every packet that has made the full trip.
+ *
+ * RTT and jitter are smoothed the way TCP smooths its retransmission timer (RFC 6298): srtt moves an eighth of the
+ * way towards each sample and the jitter a quarter of the way towards the sample's distance from srtt.  The clock
+ * offset is worked out NTP style, assuming the server stamped the packet halfway through the round trip, and is
+ * taken from the lowest RTT sample of the last few since that's the one with the least queueing to skew it.
+ *
+ * Samples are expected from one thread; the estimates can be read from any.
+ */
+public class LatencyEstimator {
+    // How many recent samples the offset is picked from
+    public static final int OFFSET_WINDOW = 8;
+
+    private volatile double smoothedRtt;
+    private volatile double jitter;
+    private volatile long clockOffset;
+    private volatile long samples;
+
+    private long[] windowRtt = new long[OFFSET_WINDOW];
+    private long[] windowOffset = new long[OFFSET_WINDOW];
+
+    /**
+     * Takes a packet the client stamped when sending and receiving and the server stamped in between.  Packets that
+     * haven't made the full trip are ignored.
+     */
+    public void sample(TimingPacket tp) {
+        if (tp.getServerResponseTime() == 0 || tp.getReturnTime() == 0) {
+            return;
+        }
+        long rtt = Math.max(0, tp.getReturnTime() - tp.getInitiatedTime());
+        // Server clock minus client clock
+        long offset = tp.getServerResponseTime() - (tp.getInitiatedTime() + tp.getReturnTime()) / 2;
+
+        if (samples == 0) {
+            smoothedRtt = rtt;
+            jitter = rtt / 2.0;
+        } else {
+            jitter = 0.75 * jitter + 0.25 * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+        }
+
+        int idx = (int)(samples % OFFSET_WINDOW);
+        windowRtt[idx] = rtt;
+        windowOffset[idx] = offset;
+        int filled = (int)Math.min(samples + 1, OFFSET_WINDOW);
+        int best = 0;
+        for (int ii = 1; ii < filled; ii++) {
+            if (windowRtt[ii] < windowRtt[best]) {
+                best = ii;
+            }
+        }
+        clockOffset = windowOffset[best];
+        samples++;
+    }
+
+    public boolean hasSamples() {
+        return samples > 0;
+    }
+
+    /**
+     * Smoothed round trip time in milliseconds.
+     */
+    public long getRtt() {
+        return Math.round(smoothedRtt);
+    }
+
+    /**
+     * Mean deviation of the round trip time from its smoothed value, in milliseconds.
+     */
+    public long getJitter() {
+        return Math.round(jitter);
+    }
+
+    /**
+     * Milliseconds to add to a client timestamp to get the server's time.
+     */
+    public long getClockOffset() {
+        return clockOffset;
+    }
+
+    @Override
+    public String toString() {
+        return "rtt=" + getRtt() + "ms jitter=" + getJitter() + "ms offset=" + getClockOffset() + "ms";
+    }
+}
@@ -0,0 +1,80 @@
+package com.bb.common.data;
+
+import java.awt.event.KeyEvent;
+
+import static com.bb.common.data.GameWorld.CELL_SIZE;
+
+/**
+ * How players move, shared so the client can predict its own movement with exactly the rules the server applies.
+ * A move is all or nothing: if the destination is inside a wall the player stays put.
+ */
+public class Movement {
+    // Pixels per second
+    public static final double PLAYER_SPEED = 200;
+
+    /**
+     * -1, 0 or 1 along x for the arrow keys held down.
+     */
+    public static int dx(boolean[] keyDown) {
+        if (keyDown[KeyEvent.VK_LEFT]) {
+            return -1;
+        } else if (keyDown[KeyEvent.VK_RIGHT]) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * -1, 0 or 1 along y for the arrow keys held down.
+     */
+    public static int dy(boolean[] keyDown) {
+        if (keyDown[KeyEvent.VK_UP]) {
+            return -1;
+        } else if (keyDown[KeyEvent.VK_DOWN]) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * -1, 0 or 1 along x for a ClientInput button mask.
+     */
+    public static int dx(int buttons) {
+        if ((buttons & ClientInput.LEFT) != 0) {
+            return -1;
+        } else if ((buttons & ClientInput.RIGHT) != 0) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * -1, 0 or 1 along y for a ClientInput button mask.
+     */
+    public static int dy(int buttons) {
+        if ((buttons & ClientInput.UP) != 0) {
+            return -1;
+        } else if ((buttons & ClientInput.DOWN) != 0) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Moves the player distance pixels along each axis in the given direction.  Returns false if a wall was in the
+     * way and the player didn't move.
+     */
+    public static boolean move(GameWorld world, PlayerStats player, int dx, int dy, double distance) {
+        if (dx == 0 && dy == 0) {
+            return true;
+        }
+        double newX = player.getX() + dx * distance;
+        double newY = player.getY() + dy * distance;
+        if (world.get((int)(newX / CELL_SIZE), (int)(newY / CELL_SIZE)) == TerrainType.WALL) {
+            return false;
+        }
+        player.setX(newX);
+        player.setY(newY);
+        return true;
+    }
+}
@@ -1,17 +1,24 @@
 package com.bb.common.data;
 
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Created by jake on 7/25/15.
+ *
+ * Either a standalone value (parsed messages, snapshot copies) or, when created by EntityStore.view(), a view that
+ * reads and writes one slot of the store.
  */
 public class PlayerStats {
     public static final java.lang.String PREFIX = "PlayerStats";
+    public static final byte TYPE = 1;
     private String playerId;
     private double x, y;
     private int health;
     private boolean bot;
+    private EntityStore store;
+    private int handle = EntityStore.NO_HANDLE;
 
     public PlayerStats(String playerId, double x, double y, int health, boolean bot) {
         this.playerId = playerId;
@@ -21,41 +28,69 @@ public class PlayerStats {
         this.bot = bot;
     }
 
+    PlayerStats(EntityStore store, int handle) {
+        this.store = store;
+        this.handle = handle;
+    }
+
+    /**
+     * The EntityStore slot this player lives in, or EntityStore.NO_HANDLE if it didn't come from a store.
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    void setHandle(int handle) {
+        this.handle = handle;
+    }
+
     public String getPlayerId() {
-        return playerId;
+        return store != null ? store.getId(handle) : playerId;
     }
 
     public double getX() {
-        return x;
+        return store != null ? store.getX(handle) : x;
     }
 
     public double getY() {
-        return y;
+        return store != null ? store.getY(handle) : y;
     }
 
     public void setX(double x) {
-        this.x = x;
+        if (store != null) {
+            store.setX(handle, x);
+        } else {
+            this.x = x;
+        }
     }
 
     public void setY(double y) {
-        this.y = y;
+        if (store != null) {
+            store.setY(handle, y);
+        } else {
+            this.y = y;
+        }
     }
 
     public int getHealth() {
-        return health;
+        return store != null ? store.getHealth(handle) : health;
     }
 
     public void setHealth(int health) {
-        this.health = health;
+        if (store != null) {
+            store.setHealth(handle, health);
+        } else {
+            this.health = health;
+        }
     }
 
     public boolean isBot() {
-        return bot;
+        return store != null ? store.isBot(handle) : bot;
     }
 
     @Override
     public String toString() {
-        return PREFIX + "{" + playerId + "," + x + "," + y + "," + health + "," + bot + "}";
+        return PREFIX + "{" + getPlayerId() + "," + getX() + "," + getY() + "," + getHealth() + "," + isBot() + "}";
     }
 
     public static PlayerStats parse(String data) {
@@ -80,4 +115,32 @@ public class PlayerStats {
     public static boolean matches(String data) {
         return data.startsWith(PREFIX);
     }
+
+    public int encodedLength() {
+        return 2 + getPlayerId().length() + 8 + 8 + 4 + 1;
+    }
+
+    public void write(ByteBuffer buf) {
+        String id = getPlayerId();
+        buf.putShort((short)id.length());
+        for (int ii=0; ii<id.length(); ii++) {
+            buf.put((byte)id.charAt(ii));
+        }
+        buf.putDouble(getX());
+        buf.putDouble(getY());
+        buf.putInt(getHealth());
+        buf.put(isBot() ? (byte)1 : (byte)0);
+    }
+
+    public static PlayerStats read(ByteBuffer buf) {
+        char[] id = new char[buf.getShort()];
+        for (int ii=0; ii<id.length; ii++) {
+            id[ii] = (char)buf.get();
+        }
+        double x = buf.getDouble();
+        double y = buf.getDouble();
+        int health = buf.getInt();
+        boolean bot = buf.get() != 0;
+        return new PlayerStats(new String(id), x, y, health, bot);
+    }
 }
@@ -0,0 +1,77 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sent to a client whose player has moved into a part of the world another server looks after.  The client should
+ * connect to host:port and send a Resume with the token, which picks the player up where it left off.
+ */
+public class Redirect {
+    private static final String PREFIX = "Redirect";
+    public static final byte TYPE = 11;
+
+    private String host;
+    private int port;
+    private long token;
+
+    public Redirect(String host, int port, long token) {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        return PREFIX + "{" + host + "," + port + "," + token + "}";
+    }
+    public static Redirect parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                String[] parts = m.group(1).split(",");
+                return new Redirect(parts[0], Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        return 2 + host.length() + 4 + 8;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putShort((short)host.length());
+        for (int ii = 0; ii < host.length(); ii++) {
+            buf.put((byte)host.charAt(ii));
+        }
+        buf.putInt(port);
+        buf.putLong(token);
+    }
+
+    public static Redirect read(ByteBuffer buf) {
+        char[] host = new char[buf.getShort()];
+        for (int ii = 0; ii < host.length; ii++) {
+            host[ii] = (char)buf.get();
+        }
+        int port = buf.getInt();
+        long token = buf.getLong();
+        return new Redirect(new String(host), port, token);
+    }
+}
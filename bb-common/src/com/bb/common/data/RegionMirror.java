@@ -0,0 +1,84 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Server to server: every entity the sending region simulates that is close enough to the receiving region to be
+ * seen or shot from it.  Each one replaces the whole of the last mirror from the same region.
+ */
+public class RegionMirror {
+    private static final String PREFIX = "RegionMirror";
+    public static final byte TYPE = 14;
+
+    private int region;
+    private List<PlayerStats> entities;
+
+    public RegionMirror(int region, List<PlayerStats> entities) {
+        this.region = region;
+        this.entities = entities;
+    }
+
+    public int getRegion() {
+        return region;
+    }
+
+    public List<PlayerStats> getEntities() {
+        return entities;
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        StringBuilder sb = new StringBuilder(PREFIX).append("{").append(region);
+        for (PlayerStats ps : entities) {
+            sb.append(";").append(ps);
+        }
+        return sb.append("}").toString();
+    }
+    public static RegionMirror parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                String[] sections = m.group(1).split(";");
+                List<PlayerStats> entities = new ArrayList<>();
+                for (int ii = 1; ii < sections.length; ii++) {
+                    entities.add(PlayerStats.parse(sections[ii]));
+                }
+                return new RegionMirror(Integer.parseInt(sections[0]), entities);
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        int ret = 4 + 4;
+        for (PlayerStats ps : entities) {
+            ret += ps.encodedLength();
+        }
+        return ret;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putInt(region);
+        buf.putInt(entities.size());
+        for (PlayerStats ps : entities) {
+            ps.write(buf);
+        }
+    }
+
+    public static RegionMirror read(ByteBuffer buf) {
+        int region = buf.getInt();
+        int count = buf.getInt();
+        List<PlayerStats> entities = new ArrayList<>(count);
+        for (int ii = 0; ii < count; ii++) {
+            entities.add(PlayerStats.read(buf));
+        }
+        return new RegionMirror(region, entities);
+    }
+}
@@ -0,0 +1,68 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Server to server: a shot on the sending server hit one of the receiving server's players, known to the sender
+ * only through a RegionMirror.  The id is the one the receiving server gave the player.
+ */
+public class RemoteHit {
+    private static final String PREFIX = "RemoteHit";
+    public static final byte TYPE = 15;
+
+    private String playerId;
+    private int damage;
+
+    public RemoteHit(String playerId, int damage) {
+        this.playerId = playerId;
+        this.damage = damage;
+    }
+
+    public String getPlayerId() {
+        return playerId;
+    }
+
+    public int getDamage() {
+        return damage;
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        return PREFIX + "{" + playerId + "," + damage + "}";
+    }
+    public static RemoteHit parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                String[] parts = m.group(1).split(",");
+                return new RemoteHit(parts[0], Integer.parseInt(parts[1]));
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        return 2 + playerId.length() + 4;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putShort((short)playerId.length());
+        for (int ii = 0; ii < playerId.length(); ii++) {
+            buf.put((byte)playerId.charAt(ii));
+        }
+        buf.putInt(damage);
+    }
+
+    public static RemoteHit read(ByteBuffer buf) {
+        char[] id = new char[buf.getShort()];
+        for (int ii = 0; ii < id.length; ii++) {
+            id[ii] = (char)buf.get();
+        }
+        return new RemoteHit(new String(id), buf.getInt());
+    }
+}
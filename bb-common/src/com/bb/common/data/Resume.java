@@ -0,0 +1,54 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sent by a client straight after connecting to carry on as a player it already had, using the token it was given
+ * in a Redirect.  The server also sends one to every client that joins, with the token that gets its player back if
+ * the server restarts from a checkpoint.
+ */
+public class Resume {
+    private static final String PREFIX = "Resume";
+    public static final byte TYPE = 12;
+
+    private long token;
+
+    public Resume(long token) {
+        this.token = token;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        return PREFIX + "{" + token + "}";
+    }
+    public static Resume parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                return new Resume(Long.parseLong(m.group(1)));
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        return 8;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putLong(token);
+    }
+
+    public static Resume read(ByteBuffer buf) {
+        return new Resume(buf.getLong());
+    }
+}
@@ -1,6 +1,8 @@
 package com.bb.common.data;
 
 import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -10,8 +12,10 @@ import java.util.regex.Pattern;
 public class ShotFired {
     private static final String PREFIX = "ShotFired";
     public static final long MAX_RENDER_AGE = 500;
+    public static final byte TYPE = 2;
 
-    private static int NEXT_ID = 0;
+    // Shots are fired on every room's tick thread at once
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
 
     private transient long createTime;
     private int id;
@@ -21,7 +25,7 @@ public class ShotFired {
 
     // For server use
     public ShotFired(Point origin, Point target) {
-        id = NEXT_ID++;
+        id = NEXT_ID.getAndIncrement();
         createTime = System.currentTimeMillis();
         this.active = true;
         this.origin = origin;
@@ -78,4 +82,25 @@ public class ShotFired {
         }
         return null;
     }
+
+    public int encodedLength() {
+        return 4 + 4 * 4 + 1;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putInt(id);
+        buf.putInt(origin.x);
+        buf.putInt(origin.y);
+        buf.putInt(target.x);
+        buf.putInt(target.y);
+        buf.put(active ? (byte)1 : (byte)0);
+    }
+
+    public static ShotFired read(ByteBuffer buf) {
+        int id = buf.getInt();
+        Point origin = new Point(buf.getInt(), buf.getInt());
+        Point target = new Point(buf.getInt(), buf.getInt());
+        boolean active = buf.get() != 0;
+        return new ShotFired(id, active, origin, target);
+    }
 }
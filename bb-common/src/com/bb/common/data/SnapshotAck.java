@@ -0,0 +1,53 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sent by the client to tell the server the newest snapshot tick it has rebuilt, so later deltas can be
+ * encoded against it.
+ */
+public class SnapshotAck {
+    private static final String PREFIX = "SnapshotAck";
+    public static final byte TYPE = 8;
+
+    private long tick;
+
+    public SnapshotAck(long tick) {
+        this.tick = tick;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        return PREFIX + "{" + tick + "}";
+    }
+    public static SnapshotAck parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                return new SnapshotAck(Long.parseLong(m.group(1)));
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        return 8;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putLong(tick);
+    }
+
+    public static SnapshotAck read(ByteBuffer buf) {
+        return new SnapshotAck(buf.getLong());
+    }
+}
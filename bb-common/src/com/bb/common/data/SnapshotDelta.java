@@ -0,0 +1,244 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Player state at a tick, expressed as the fields that changed since baseTick.  A baseTick of FULL means every
+ * player is included with every field, which is what a client gets on join or after falling too far behind.
+ */
+public class SnapshotDelta {
+    private static final String PREFIX = "SnapshotDelta";
+    public static final byte TYPE = 7;
+    public static final long FULL = -1;
+    // How far in the past clients draw other players, in milliseconds, so there is nearly always a snapshot either
+    // side to blend.  The server rewinds shots by this much on top of the round trip.
+    public static final double INTERPOLATION_DELAY = 100;
+
+    // Bits of the per-player field mask
+    public static final int X = 1;
+    public static final int Y = 2;
+    public static final int HEALTH = 4;
+    public static final int BOT = 8;
+    public static final int ALL = X | Y | HEALTH | BOT;
+
+    private long tick;
+    private long baseTick;
+    private List<PlayerStats> changed;
+    private byte[] masks;
+    private List<String> removed;
+
+    public SnapshotDelta(long tick, long baseTick) {
+        this.tick = tick;
+        this.baseTick = baseTick;
+        changed = new ArrayList<>();
+        masks = new byte[16];
+        removed = new ArrayList<>();
+    }
+
+    /**
+     * Builds the delta that turns base (the state at baseTick, or null for a full snapshot) into current.
+     */
+    public static SnapshotDelta between(long baseTick, Map<String, PlayerStats> base, long tick, Map<String, PlayerStats> current) {
+        if (base == null) {
+            baseTick = FULL;
+            base = Collections.emptyMap();
+        }
+
+        SnapshotDelta ret = new SnapshotDelta(tick, baseTick);
+        for (PlayerStats pp : current.values()) {
+            PlayerStats old = base.get(pp.getPlayerId());
+            int mask = ALL;
+            if (old != null) {
+                mask = 0;
+                if (old.getX() != pp.getX()) {
+                    mask |= X;
+                }
+                if (old.getY() != pp.getY()) {
+                    mask |= Y;
+                }
+                if (old.getHealth() != pp.getHealth()) {
+                    mask |= HEALTH;
+                }
+                if (old.isBot() != pp.isBot()) {
+                    mask |= BOT;
+                }
+            }
+            if (mask != 0) {
+                ret.add(pp, mask);
+            }
+        }
+        for (String id : base.keySet()) {
+            if (!current.containsKey(id)) {
+                ret.removed.add(id);
+            }
+        }
+        return ret;
+    }
+
+    public void add(PlayerStats player, int mask) {
+        if (changed.size() == masks.length) {
+            masks = Arrays.copyOf(masks, masks.length * 2);
+        }
+        masks[changed.size()] = (byte)mask;
+        changed.add(player);
+    }
+
+    /**
+     * Rebuilds the full state at this delta's tick.  base must be the state at getBaseTick(); it is not modified.
+     */
+    public Map<String, PlayerStats> applyTo(Map<String, PlayerStats> base) {
+        Map<String, PlayerStats> ret = new HashMap<>();
+        if (!isFull()) {
+            ret.putAll(base);
+        }
+        for (String id : removed) {
+            ret.remove(id);
+        }
+        for (int ii = 0; ii < changed.size(); ii++) {
+            PlayerStats pp = changed.get(ii);
+            PlayerStats old = ret.get(pp.getPlayerId());
+            int mask = masks[ii];
+            if (old == null || mask == ALL) {
+                ret.put(pp.getPlayerId(), pp);
+            } else {
+                ret.put(pp.getPlayerId(), new PlayerStats(pp.getPlayerId(),
+                        (mask & X) != 0 ? pp.getX() : old.getX(),
+                        (mask & Y) != 0 ? pp.getY() : old.getY(),
+                        (mask & HEALTH) != 0 ? pp.getHealth() : old.getHealth(),
+                        (mask & BOT) != 0 ? pp.isBot() : old.isBot()));
+            }
+        }
+        return ret;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public long getBaseTick() {
+        return baseTick;
+    }
+
+    public boolean isFull() {
+        return baseTick == FULL;
+    }
+
+    public static boolean matches(String data) {
+        return data.startsWith(PREFIX);
+    }
+    public String toString() {
+        StringBuilder bld = new StringBuilder(PREFIX);
+        bld.append("{").append(tick).append(",").append(baseTick);
+        for (int ii = 0; ii < changed.size(); ii++) {
+            PlayerStats pp = changed.get(ii);
+            bld.append(";P,").append(pp.getPlayerId()).append(",").append(masks[ii]).append(",").append(pp.getX())
+                    .append(",").append(pp.getY()).append(",").append(pp.getHealth()).append(",").append(pp.isBot());
+        }
+        for (String id : removed) {
+            bld.append(";R,").append(id);
+        }
+        bld.append("}");
+        return bld.toString();
+    }
+    public static SnapshotDelta parse(String data) {
+        Pattern p = Pattern.compile(PREFIX + "\\{(.*)\\}");
+        Matcher m = p.matcher(data);
+        if (m.matches()) {
+            if (m.groupCount() == 1) {
+                String[] sections = m.group(1).split(";");
+                String[] header = sections[0].split(",");
+                SnapshotDelta ret = new SnapshotDelta(Long.parseLong(header[0]), Long.parseLong(header[1]));
+                for (int ii = 1; ii < sections.length; ii++) {
+                    String[] parts = sections[ii].split(",");
+                    if (parts[0].equals("P")) {
+                        ret.add(new PlayerStats(parts[1], Double.parseDouble(parts[3]), Double.parseDouble(parts[4]),
+                                Integer.parseInt(parts[5]), Boolean.parseBoolean(parts[6])), Integer.parseInt(parts[2]));
+                    } else {
+                        ret.removed.add(parts[1]);
+                    }
+                }
+                return ret;
+            }
+        }
+        return null;
+    }
+
+    public int encodedLength() {
+        int len = 8 + 8 + 4 + 4;
+        for (int ii = 0; ii < changed.size(); ii++) {
+            int mask = masks[ii];
+            len += 2 + changed.get(ii).getPlayerId().length() + 1;
+            len += ((mask & X) != 0 ? 8 : 0) + ((mask & Y) != 0 ? 8 : 0) + ((mask & HEALTH) != 0 ? 4 : 0) +
+                    ((mask & BOT) != 0 ? 1 : 0);
+        }
+        for (String id : removed) {
+            len += 2 + id.length();
+        }
+        return len;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putLong(tick);
+        buf.putLong(baseTick);
+        buf.putInt(changed.size());
+        for (int ii = 0; ii < changed.size(); ii++) {
+            PlayerStats pp = changed.get(ii);
+            int mask = masks[ii];
+            writeId(buf, pp.getPlayerId());
+            buf.put((byte)mask);
+            if ((mask & X) != 0) {
+                buf.putDouble(pp.getX());
+            }
+            if ((mask & Y) != 0) {
+                buf.putDouble(pp.getY());
+            }
+            if ((mask & HEALTH) != 0) {
+                buf.putInt(pp.getHealth());
+            }
+            if ((mask & BOT) != 0) {
+                buf.put(pp.isBot() ? (byte)1 : (byte)0);
+            }
+        }
+        buf.putInt(removed.size());
+        for (String id : removed) {
+            writeId(buf, id);
+        }
+    }
+
+    public static SnapshotDelta read(ByteBuffer buf) {
+        SnapshotDelta ret = new SnapshotDelta(buf.getLong(), buf.getLong());
+        int count = buf.getInt();
+        for (int ii = 0; ii < count; ii++) {
+            String id = readId(buf);
+            int mask = buf.get();
+            double x = (mask & X) != 0 ? buf.getDouble() : 0;
+            double y = (mask & Y) != 0 ? buf.getDouble() : 0;
+            int health = (mask & HEALTH) != 0 ? buf.getInt() : 0;
+            boolean bot = (mask & BOT) != 0 && buf.get() != 0;
+            ret.add(new PlayerStats(id, x, y, health, bot), mask);
+        }
+        count = buf.getInt();
+        for (int ii = 0; ii < count; ii++) {
+            ret.removed.add(readId(buf));
+        }
+        return ret;
+    }
+
+    private static void writeId(ByteBuffer buf, String id) {
+        buf.putShort((short)id.length());
+        for (int ii = 0; ii < id.length(); ii++) {
+            buf.put((byte)id.charAt(ii));
+        }
+    }
+
+    private static String readId(ByteBuffer buf) {
+        char[] id = new char[buf.getShort()];
+        for (int ii = 0; ii < id.length; ii++) {
+            id[ii] = (char)buf.get();
+        }
+        return new String(id);
+    }
+}
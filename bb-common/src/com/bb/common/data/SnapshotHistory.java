@@ -0,0 +1,40 @@
+package com.bb.common.data;
+
+import java.util.Map;
+
+/**
+ * The last few snapshots of player state, by tick.  Both ends keep one so deltas can be encoded and rebuilt
+ * against any tick the client might still be acknowledging.
+ */
+public class SnapshotHistory {
+    public static final int SIZE = 64;
+
+    private long[] ticks;
+    private Object[] states;
+
+    public SnapshotHistory() {
+        ticks = new long[SIZE];
+        states = new Object[SIZE];
+        for (int ii = 0; ii < SIZE; ii++) {
+            ticks[ii] = SnapshotDelta.FULL;
+        }
+    }
+
+    public void put(long tick, Map<String, PlayerStats> state) {
+        int idx = (int)(tick % SIZE);
+        ticks[idx] = tick;
+        states[idx] = state;
+    }
+
+    /**
+     * Returns the state recorded for tick, or null if it was never recorded or has since been overwritten.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, PlayerStats> get(long tick) {
+        if (tick < 0) {
+            return null;
+        }
+        int idx = (int)(tick % SIZE);
+        return ticks[idx] == tick ? (Map<String, PlayerStats>)states[idx] : null;
+    }
+}
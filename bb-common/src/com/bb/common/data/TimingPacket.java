@@ -1,5 +1,6 @@
 package com.bb.common.data;
 
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -8,6 +9,7 @@ import java.util.regex.Pattern;
  */
 public class TimingPacket {
     private static final String PREFIX = "TimingPacket";
+    public static final byte TYPE = 5;
     private long initiatedTime;
     private long serverResponseTime;
     private long returnTime;
@@ -63,4 +65,20 @@ public class TimingPacket {
         return null;
     }
 
+    public int encodedLength() {
+        return 3 * 8;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putLong(initiatedTime);
+        buf.putLong(serverResponseTime);
+        buf.putLong(returnTime);
+    }
+
+    public static TimingPacket read(ByteBuffer buf) {
+        long it = buf.getLong();
+        long sr = buf.getLong();
+        long rt = buf.getLong();
+        return new TimingPacket(it, sr, rt);
+    }
 }
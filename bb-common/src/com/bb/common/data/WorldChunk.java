@@ -0,0 +1,111 @@
+package com.bb.common.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One piece of a GameWorld's compressed encoding (see GameWorld.getEncoded()).  Joining binary clients receive
+ * the world as a stream of these rather than as one huge message.
+ */
+public class WorldChunk {
+    public static final byte TYPE = 9;
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private int version;
+    private int worldSize;
+    private int totalLength;
+    private int offset;
+    private byte[] data;
+    private int dataOffset;
+    private int dataLength;
+
+    /**
+     * The chunk covers data[dataOffset, dataOffset + dataLength), which sits at offset within the whole encoding.
+     * The array is not copied.
+     */
+    public WorldChunk(int version, int worldSize, int totalLength, int offset, byte[] data, int dataOffset, int dataLength) {
+        this.version = version;
+        this.worldSize = worldSize;
+        this.totalLength = totalLength;
+        this.offset = offset;
+        this.data = data;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getWorldSize() {
+        return worldSize;
+    }
+
+    public int getTotalLength() {
+        return totalLength;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public String toString() {
+        return "WorldChunk{" + version + "," + worldSize + "," + offset + "+" + dataLength + "/" + totalLength + "}";
+    }
+
+    public int encodedLength() {
+        return 4 * 5 + dataLength;
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putInt(version);
+        buf.putInt(worldSize);
+        buf.putInt(totalLength);
+        buf.putInt(offset);
+        buf.putInt(dataLength);
+        buf.put(data, dataOffset, dataLength);
+    }
+
+    public static WorldChunk read(ByteBuffer buf) {
+        int version = buf.getInt();
+        int worldSize = buf.getInt();
+        int totalLength = buf.getInt();
+        int offset = buf.getInt();
+        byte[] data = new byte[buf.getInt()];
+        buf.get(data);
+        return new WorldChunk(version, worldSize, totalLength, offset, data, 0, data.length);
+    }
+
+    /**
+     * Collects the chunks of one world version and rebuilds the GameWorld once they have all arrived.
+     */
+    public static class Assembler {
+        private int version = -1;
+        private byte[] encoded;
+        private int received;
+
+        /**
+         * Returns the finished world once the last chunk is added, otherwise null.
+         */
+        public GameWorld add(WorldChunk chunk) {
+            if (chunk.version != version || encoded == null || encoded.length != chunk.totalLength) {
+                version = chunk.version;
+                encoded = new byte[chunk.totalLength];
+                received = 0;
+            }
+
+            System.arraycopy(chunk.data, chunk.dataOffset, encoded, chunk.offset, chunk.dataLength);
+            received += chunk.dataLength;
+            if (received < encoded.length) {
+                return null;
+            }
+
+            GameWorld ret = GameWorld.decode(chunk.worldSize, encoded, encoded.length);
+            encoded = null;
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.bb.common.net;
+
+import com.bb.common.data.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Compact binary protocol.  Every frame is a one byte type tag, a four byte payload length and then the message's
+ * fixed width fields, read and written straight from ByteBuffers.
+ */
+public class BinaryCodec implements Codec {
+    public static final int HEADER_LENGTH = 1 + 4;
+
+    private FrameBuffer in;
+
+    public BinaryCodec() {
+        this(new FrameBuffer());
+    }
+
+    public BinaryCodec(FrameBuffer in) {
+        this.in = in;
+    }
+
+    public void accumulate(byte[] data, int bytesRead) {
+        in.write(data, 0, bytesRead);
+    }
+
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        return in.readFrom(channel);
+    }
+
+    public boolean hasData() throws IOException {
+        if (in.available() < HEADER_LENGTH) {
+            return false;
+        }
+        int length = in.getInt(1);
+        // The length comes from the peer; anything we couldn't buffer means the stream is garbage
+        if (length < 0 || length > FrameBuffer.MAX_CAPACITY - HEADER_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        int frameLength = HEADER_LENGTH + length;
+        if (in.available() < frameLength) {
+            in.ensureCapacity(frameLength);
+            return false;
+        }
+        return true;
+    }
+
+    public Object getData() throws IOException {
+        if (!hasData()) {
+            return null;
+        }
+
+        byte type = in.get(0);
+        int length = in.getInt(1);
+        ByteBuffer frame = in.slice(HEADER_LENGTH, length);
+
+        Object ret;
+        switch (type) {
+            case PlayerStats.TYPE: ret = PlayerStats.read(frame); break;
+            case ShotFired.TYPE: ret = ShotFired.read(frame); break;
+            case ClientKeyEvent.TYPE: ret = ClientKeyEvent.read(frame); break;
+            case ClientShotAttempt.TYPE: ret = ClientShotAttempt.read(frame); break;
+            case TimingPacket.TYPE: ret = TimingPacket.read(frame); break;
+            case GameWorld.TYPE: ret = GameWorld.read(frame); break;
+            case SnapshotDelta.TYPE: ret = SnapshotDelta.read(frame); break;
+            case SnapshotAck.TYPE: ret = SnapshotAck.read(frame); break;
+            case WorldChunk.TYPE: ret = WorldChunk.read(frame); break;
+            case ClientInput.TYPE: ret = ClientInput.read(frame); break;
+            case Redirect.TYPE: ret = Redirect.read(frame); break;
+            case Resume.TYPE: ret = Resume.read(frame); break;
+            case Handoff.TYPE: ret = Handoff.read(frame); break;
+            case RegionMirror.TYPE: ret = RegionMirror.read(frame); break;
+            case RemoteHit.TYPE: ret = RemoteHit.read(frame); break;
+            default:
+                System.out.println("Unknown message type " + type + " (" + length + " bytes)");
+                ret = null;
+        }
+
+        in.consume(HEADER_LENGTH + length);
+        return ret;
+    }
+
+    public ByteBuffer encode(Object message, ByteBuffer out) {
+        if (message instanceof PlayerStats) {
+            PlayerStats ps = (PlayerStats)message;
+            out = header(out, PlayerStats.TYPE, ps.encodedLength());
+            ps.write(out);
+        } else if (message instanceof ShotFired) {
+            ShotFired sf = (ShotFired)message;
+            out = header(out, ShotFired.TYPE, sf.encodedLength());
+            sf.write(out);
+        } else if (message instanceof ClientKeyEvent) {
+            ClientKeyEvent cke = (ClientKeyEvent)message;
+            out = header(out, ClientKeyEvent.TYPE, cke.encodedLength());
+            cke.write(out);
+        } else if (message instanceof ClientShotAttempt) {
+            ClientShotAttempt csa = (ClientShotAttempt)message;
+            out = header(out, ClientShotAttempt.TYPE, csa.encodedLength());
+            csa.write(out);
+        } else if (message instanceof TimingPacket) {
+            TimingPacket tp = (TimingPacket)message;
+            out = header(out, TimingPacket.TYPE, tp.encodedLength());
+            tp.write(out);
+        } else if (message instanceof GameWorld) {
+            GameWorld gw = (GameWorld)message;
+            out = header(out, GameWorld.TYPE, gw.encodedLength());
+            gw.write(out);
+        } else if (message instanceof SnapshotDelta) {
+            SnapshotDelta sd = (SnapshotDelta)message;
+            out = header(out, SnapshotDelta.TYPE, sd.encodedLength());
+            sd.write(out);
+        } else if (message instanceof SnapshotAck) {
+            SnapshotAck sa = (SnapshotAck)message;
+            out = header(out, SnapshotAck.TYPE, sa.encodedLength());
+            sa.write(out);
+        } else if (message instanceof WorldChunk) {
+            WorldChunk wc = (WorldChunk)message;
+            out = header(out, WorldChunk.TYPE, wc.encodedLength());
+            wc.write(out);
+        } else if (message instanceof ClientInput) {
+            ClientInput ci = (ClientInput)message;
+            out = header(out, ClientInput.TYPE, ci.encodedLength());
+            ci.write(out);
+        } else if (message instanceof Redirect) {
+            Redirect rd = (Redirect)message;
+            out = header(out, Redirect.TYPE, rd.encodedLength());
+            rd.write(out);
+        } else if (message instanceof Resume) {
+            Resume rs = (Resume)message;
+            out = header(out, Resume.TYPE, rs.encodedLength());
+            rs.write(out);
+        } else if (message instanceof Handoff) {
+            Handoff ho = (Handoff)message;
+            out = header(out, Handoff.TYPE, ho.encodedLength());
+            ho.write(out);
+        } else if (message instanceof RegionMirror) {
+            RegionMirror rm = (RegionMirror)message;
+            out = header(out, RegionMirror.TYPE, rm.encodedLength());
+            rm.write(out);
+        } else if (message instanceof RemoteHit) {
+            RemoteHit rh = (RemoteHit)message;
+            out = header(out, RemoteHit.TYPE, rh.encodedLength());
+            rh.write(out);
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + message.getClass().getName());
+        }
+        return out;
+    }
+
+    private ByteBuffer header(ByteBuffer out, byte type, int length) {
+        out = ByteBuffers.ensureRemaining(out, HEADER_LENGTH + length);
+        out.put(type);
+        out.putInt(length);
+        return out;
+    }
+}
@@ -0,0 +1,26 @@
+package com.bb.common.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Small helpers for working with growable ByteBuffers.
+ */
+public final class ByteBuffers {
+    private ByteBuffers() {
+    }
+
+    /**
+     * Returns buf if it has at least needed bytes remaining, otherwise a larger buffer holding the same contents
+     * and position.
+     */
+    public static ByteBuffer ensureRemaining(ByteBuffer buf, int needed) {
+        if (buf.remaining() >= needed) {
+            return buf;
+        }
+        int capacity = Math.max(buf.capacity() * 2, buf.position() + needed);
+        ByteBuffer bigger = buf.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+}
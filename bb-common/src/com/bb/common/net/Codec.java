@@ -0,0 +1,30 @@
+package com.bb.common.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Frames and decodes incoming bytes and encodes outgoing messages for one connection.
+ */
+public interface Codec {
+    void accumulate(byte[] data, int bytesRead);
+
+    /**
+     * Reads directly from the channel into this codec's FrameBuffer.  Returns -1 at end of stream.
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException;
+
+    /**
+     * Whether a whole message has arrived.  Throws IOException if the peer sent something that can't be framed, after
+     * which the connection should be closed.
+     */
+    boolean hasData() throws IOException;
+
+    Object getData() throws IOException;
+
+    /**
+     * Appends the encoded message to out.  Returns out, or a larger copy of it if the message did not fit.
+     */
+    ByteBuffer encode(Object message, ByteBuffer out);
+}
@@ -2,33 +2,68 @@ package com.bb.common.net;
 
 import com.bb.common.data.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Created by jake on 7/25/15.
  */
-public class DataAccumulator {
+public class DataAccumulator implements Codec {
     public static final String DELIMITER = "!^!";
 
-    private StringBuilder builder;
+    private FrameBuffer in;
+    // How far into the buffer we have already looked for a delimiter, so each byte is only scanned once
+    private int scanned;
+    // Length of the complete message at the front of the buffer, or -1 if we haven't found one yet
+    private int frameLength;
 
     public DataAccumulator() {
-        builder = new StringBuilder();
+        this(new FrameBuffer());
+    }
+
+    public DataAccumulator(FrameBuffer in) {
+        this.in = in;
+        frameLength = -1;
     }
 
     public void accumulate(byte[] data, int bytesRead) {
-        for (int ii=0; ii<bytesRead; ii++) {
-            builder.append((char)data[ii]);
-        }
+        in.write(data, 0, bytesRead);
+    }
+
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        return in.readFrom(channel);
     }
 
     public boolean hasData() {
-        return builder.indexOf(DELIMITER) != -1;
+        if (frameLength >= 0) {
+            return true;
+        }
+
+        int last = in.available() - DELIMITER.length();
+        for (int ii=scanned; ii<=last; ii++) {
+            if (in.get(ii) == DELIMITER.charAt(0) && in.get(ii + 1) == DELIMITER.charAt(1) &&
+                    in.get(ii + 2) == DELIMITER.charAt(2)) {
+                frameLength = ii;
+                return true;
+            }
+        }
+        scanned = Math.max(0, last + 1);
+
+        if (in.available() == in.capacity()) {
+            // A single message bigger than the whole buffer
+            in.ensureCapacity(in.capacity() * 2);
+        }
+        return false;
     }
 
     public Object getData() {
         if (hasData()) {
-            int pos = builder.indexOf(DELIMITER);
-            String data = builder.substring(0, pos);
-            builder.replace(0, pos + DELIMITER.length(), "");
+            String data = StandardCharsets.ISO_8859_1.decode(in.slice(0, frameLength)).toString();
+            in.consume(frameLength + DELIMITER.length());
+            frameLength = -1;
+            scanned = 0;
 
             if (PlayerStats.matches(data)) {
                 return PlayerStats.parse(data);
@@ -42,6 +77,22 @@ public class DataAccumulator {
                 return ShotFired.parse(data);
             } else if (TimingPacket.matches(data)) {
                 return TimingPacket.parse(data);
+            } else if (SnapshotDelta.matches(data)) {
+                return SnapshotDelta.parse(data);
+            } else if (SnapshotAck.matches(data)) {
+                return SnapshotAck.parse(data);
+            } else if (ClientInput.matches(data)) {
+                return ClientInput.parse(data);
+            } else if (Redirect.matches(data)) {
+                return Redirect.parse(data);
+            } else if (Resume.matches(data)) {
+                return Resume.parse(data);
+            } else if (Handoff.matches(data)) {
+                return Handoff.parse(data);
+            } else if (RegionMirror.matches(data)) {
+                return RegionMirror.parse(data);
+            } else if (RemoteHit.matches(data)) {
+                return RemoteHit.parse(data);
             } else {
                 System.out.println("Unknown data starting with '" + data.substring(0, 10) + "...'");
             }
@@ -49,4 +100,16 @@ public class DataAccumulator {
 
         return null;
     }
+
+    public ByteBuffer encode(Object message, ByteBuffer out) {
+        String text = message.toString();
+        out = ByteBuffers.ensureRemaining(out, text.length() + DELIMITER.length());
+        for (int ii=0; ii<text.length(); ii++) {
+            out.put((byte)text.charAt(ii));
+        }
+        for (int ii=0; ii<DELIMITER.length(); ii++) {
+            out.put((byte)DELIMITER.charAt(ii));
+        }
+        return out;
+    }
 }
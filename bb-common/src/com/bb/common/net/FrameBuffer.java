@@ -0,0 +1,136 @@
+package com.bb.common.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reusable ring of incoming bytes backed by a direct ByteBuffer.  Channels read straight into the free part of the
+ * ring, codecs peek at and slice out complete frames, and consumed space is reclaimed by moving the read index
+ * rather than shifting the remaining data down.
+ */
+public class FrameBuffer {
+    public static final int INITIAL_CAPACITY = 8 * 1024;
+    public static final int MAX_CAPACITY = 64 * 1024 * 1024;
+
+    private ByteBuffer ring;
+    // Position/limit juggling happens on these duplicates so the ring's own limit always allows absolute gets
+    private ByteBuffer cursor;
+    private ByteBuffer view;
+    private ByteBuffer scratch;
+    private int head;
+    private int size;
+
+    public FrameBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public FrameBuffer(int capacity) {
+        ring = ByteBuffer.allocateDirect(capacity);
+        cursor = ring.duplicate();
+        view = ring.duplicate();
+        scratch = ByteBuffer.allocate(0);
+    }
+
+    public int capacity() {
+        return ring.capacity();
+    }
+
+    public int available() {
+        return size;
+    }
+
+    /**
+     * Reads whatever the channel has into the free part of the ring.  Returns 0 if the ring is full, -1 at end of
+     * stream.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (size == ring.capacity()) {
+            return 0;
+        }
+        int tail = (head + size) % ring.capacity();
+        int end = (tail < head) ? head : ring.capacity();
+        cursor.limit(end).position(tail);
+        int bytesRead = channel.read(cursor);
+        if (bytesRead > 0) {
+            size += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    public void write(byte[] data, int offset, int length) {
+        ensureCapacity(size + length);
+        int tail = (head + size) % ring.capacity();
+        int first = Math.min(length, ring.capacity() - tail);
+        cursor.limit(ring.capacity()).position(tail);
+        cursor.put(data, offset, first);
+        cursor.position(0);
+        cursor.put(data, offset + first, length - first);
+        size += length;
+    }
+
+    public byte get(int offset) {
+        return ring.get((head + offset) % ring.capacity());
+    }
+
+    public int getInt(int offset) {
+        return ((get(offset) & 0xff) << 24) | ((get(offset + 1) & 0xff) << 16) |
+                ((get(offset + 2) & 0xff) << 8) | (get(offset + 3) & 0xff);
+    }
+
+    /**
+     * Returns a buffer positioned over length bytes starting at offset.  When those bytes are contiguous in the
+     * ring this is a view of the ring itself; only frames that wrap around the end are copied.  The returned
+     * buffer is reused and is only valid until the next call on this FrameBuffer.
+     */
+    public ByteBuffer slice(int offset, int length) {
+        int start = (head + offset) % ring.capacity();
+        if (start + length <= ring.capacity()) {
+            view.limit(start + length).position(start);
+            return view;
+        }
+
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        copyOut(start, length, scratch);
+        scratch.flip();
+        return scratch;
+    }
+
+    /**
+     * Discards the first length bytes.
+     */
+    public void consume(int length) {
+        size -= length;
+        head = (size == 0) ? 0 : (head + length) % ring.capacity();
+    }
+
+    /**
+     * Grows the ring if needed so it can hold at least the given number of bytes.
+     */
+    public void ensureCapacity(int needed) {
+        if (needed <= ring.capacity()) {
+            return;
+        }
+        if (needed > MAX_CAPACITY) {
+            throw new IllegalStateException("Frame of " + needed + " bytes exceeds the " + MAX_CAPACITY + " byte limit");
+        }
+
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.min(MAX_CAPACITY, Math.max(needed, ring.capacity() * 2)));
+        copyOut(head, size, bigger);
+        ring = bigger;
+        cursor = ring.duplicate();
+        view = ring.duplicate();
+        head = 0;
+    }
+
+    private void copyOut(int start, int length, ByteBuffer dest) {
+        int first = Math.min(length, ring.capacity() - start);
+        cursor.limit(start + first).position(start);
+        dest.put(cursor);
+        cursor.limit(length - first).position(0);
+        dest.put(cursor);
+    }
+}
@@ -0,0 +1,92 @@
+package com.bb.common.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.  Each slot carries a sequence number: a
+ * producer claims a slot by moving the shared tail with a CAS and then publishes its element by bumping the slot's
+ * sequence, and the consumer only takes a slot once its sequence says it has been published.  A full ring makes
+ * offer() return false instead of blocking, so the caller decides what overflow means.
+ */
+public class MpscRing<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only touched by the consumer
+    private long head;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public MpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int ii = 0; ii < size; ii++) {
+            sequences.set(ii, ii);
+        }
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Safe from any thread.  Returns false, leaving the ring untouched, if it is full.
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int)(pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // The consumer hasn't freed this slot from the previous lap yet
+                return false;
+            }
+            // Otherwise another producer took the slot; go round again
+        }
+    }
+
+    /**
+     * Consumer only.  The oldest published element, or null if there is none.
+     */
+    public E peek() {
+        int index = (int)(head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        return elements.get(index);
+    }
+
+    /**
+     * Consumer only.  Removes and returns the oldest published element, or null if there is none.
+     */
+    public E poll() {
+        int index = (int)(head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E ret = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.set(index, head + mask + 1);
+        head++;
+        return ret;
+    }
+
+    /**
+     * Approximate when producers are active.
+     */
+    public int size() {
+        return (int)Math.max(0, tail.get() - head);
+    }
+}
@@ -0,0 +1,24 @@
+package com.bb.common.net;
+
+/**
+ * The wire formats a connection can speak.  A client asks for BINARY by sending HANDSHAKE as its very first
+ * byte; anything else (including silence) leaves the connection on the TEXT protocol.
+ */
+public enum WireFormat {
+    TEXT,
+    BINARY;
+
+    public static final byte HANDSHAKE = (byte)0xBB;
+
+    public Codec newCodec() {
+        return newCodec(new FrameBuffer());
+    }
+
+    /**
+     * Creates a codec that frames messages out of an existing buffer, e.g. one that already holds the bytes
+     * read while the format was being negotiated.
+     */
+    public Codec newCodec(FrameBuffer in) {
+        return this == BINARY ? new BinaryCodec(in) : new DataAccumulator(in);
+    }
+}
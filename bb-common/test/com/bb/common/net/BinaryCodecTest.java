@@ -0,0 +1,49 @@
+package com.bb.common.net;
+
+import com.bb.common.data.TimingPacket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+    private static BinaryCodec codecWithHeader(int length) {
+        ByteBuffer header = ByteBuffer.allocate(BinaryCodec.HEADER_LENGTH);
+        header.put(TimingPacket.TYPE).putInt(length);
+        BinaryCodec codec = new BinaryCodec();
+        codec.accumulate(header.array(), header.capacity());
+        return codec;
+    }
+
+    @Test
+    public void decodesWholeFramesAndWaitsForPartOnes() throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        ByteBuffer out = codec.encode(new TimingPacket(), ByteBuffer.allocate(64));
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+
+        codec.accumulate(bytes, bytes.length - 1);
+        assertFalse(codec.hasData());
+        codec.accumulate(new byte[] { bytes[bytes.length - 1] }, 1);
+        assertTrue(codec.hasData());
+        assertTrue(codec.getData() instanceof TimingPacket);
+        assertFalse(codec.hasData());
+    }
+
+    @Test
+    public void rejectsNegativeFrameLength() {
+        BinaryCodec codec = codecWithHeader(-1);
+        assertThrows(IOException.class, codec::hasData);
+        assertThrows(IOException.class, codec::getData);
+    }
+
+    @Test
+    public void rejectsFrameLongerThanTheBufferCanGrow() {
+        BinaryCodec codec = codecWithHeader(FrameBuffer.MAX_CAPACITY);
+        assertThrows(IOException.class, codec::hasData);
+        assertThrows(IOException.class, codec::getData);
+    }
+}
@@ -0,0 +1,126 @@
+package com.bb.server;
+
+import com.bb.common.data.EntityStore;
+import com.bb.common.data.GameWorld;
+import com.bb.common.data.TerrainType;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.bb.common.data.GameWorld.CELL_SIZE;
+
+/**
+ * Moves every bot once per tick in a single pass over a dense array of EntityStore handles.  Bots take a random
+ * step in one of the four directions unless it would put them in a wall.  Large populations are split into ranges
+ * and stepped on the common ForkJoinPool; each range only touches its own bots' slots.  Like the EntityStore it moves
+ * bots in, it must only be used from its room's tick.
+ */
+public class BotEngine {
+    // Below this many bots, forking costs more than it saves
+    public static final int PARALLEL_THRESHOLD = 4096;
+    // Bots per leaf task once the work is split
+    public static final int BATCH_SIZE = 1024;
+
+    private static final int[] DX = new int[] { 0, 1, 0, -1 };
+    private static final int[] DY = new int[] { 1, 0, -1, 0 };
+
+    private EntityStore entities;
+    private GameWorld world;
+    private double step;
+    private int[] bots;
+    // Read by getBotCount() from other threads
+    private volatile int count;
+
+    /**
+     * @param step how far a bot moves each tick, in pixels
+     */
+    public BotEngine(EntityStore entities, GameWorld world, double step) {
+        this.entities = entities;
+        this.world = world;
+        this.step = step;
+        bots = new int[64];
+    }
+
+    /**
+     * Spawns a bot at (x, y) and returns its handle.
+     */
+    public int add(double x, double y) {
+        int handle = entities.allocate(x, y, 100, true);
+        if (count == bots.length) {
+            bots = Arrays.copyOf(bots, count * 2);
+        }
+        bots[count++] = handle;
+        return handle;
+    }
+
+    /**
+     * Removes the bot with the given handle.  Returns false if it isn't one of ours.
+     */
+    public boolean remove(int handle) {
+        for (int ii = 0; ii < count; ii++) {
+            if (bots[ii] == handle) {
+                bots[ii] = bots[--count];
+                entities.free(handle);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Moves every bot once.  Called by its room each tick.
+     */
+    public void step() {
+        if (count < PARALLEL_THRESHOLD) {
+            step(0, count);
+        } else {
+            ForkJoinPool.commonPool().invoke(new StepTask(0, count));
+        }
+    }
+
+    private void step(int from, int to) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int ii = from; ii < to; ii++) {
+            int handle = bots[ii];
+            int dir = random.nextInt(DX.length);
+
+            double newX = entities.getX(handle) + DX[dir] * step;
+            double newY = entities.getY(handle) + DY[dir] * step;
+
+            int xBlock = (int)(newX / CELL_SIZE);
+            int yBlock = (int)(newY / CELL_SIZE);
+
+            if (world.get(xBlock, yBlock) != TerrainType.WALL) {
+                entities.setX(handle, newX);
+                entities.setY(handle, newY);
+            }
+        }
+    }
+
+    private class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int from, to;
+
+        StepTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                step(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new StepTask(from, mid), new StepTask(mid, to));
+            }
+        }
+    }
+}
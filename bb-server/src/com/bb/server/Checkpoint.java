@@ -0,0 +1,155 @@
+package com.bb.server;
+
+import com.bb.common.data.GameWorld;
+import com.bb.common.data.Handoff;
+import com.bb.common.data.PlayerStats;
+import com.bb.common.data.ShotFired;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything a DemoServer needs to carry on after a restart: the world, and each room's bots, shots and players.
+ * Players are kept as Handoffs under their session tokens, waiting for their clients to come back with a Resume.
+ *
+ * The file is a magic number, the world as its size and compressed encoding, then the number of rooms and for each
+ * one its bots, shots and players, each list a count followed by the messages' binary encodings.  It is written to
+ * a temporary file and renamed over the old one, so a crash while saving leaves the last checkpoint intact.
+ */
+public class Checkpoint {
+    public static final int MAGIC = 0x42424331;
+
+    private GameWorld world;
+    private List<RoomState> rooms;
+
+    /**
+     * One room at one tick.  Built by the room's tick from state it has already copied, then left alone.
+     */
+    public static class RoomState {
+        private List<PlayerStats> bots;
+        private List<ShotFired> shots;
+        private List<Handoff> players;
+
+        public RoomState(List<PlayerStats> bots, List<ShotFired> shots, List<Handoff> players) {
+            this.bots = bots;
+            this.shots = shots;
+            this.players = players;
+        }
+
+        public List<PlayerStats> getBots() {
+            return bots;
+        }
+
+        public List<ShotFired> getShots() {
+            return shots;
+        }
+
+        public List<Handoff> getPlayers() {
+            return players;
+        }
+    }
+
+    public Checkpoint(GameWorld world, List<RoomState> rooms) {
+        this.world = world;
+        this.rooms = rooms;
+    }
+
+    public GameWorld getWorld() {
+        return world;
+    }
+
+    public List<RoomState> getRooms() {
+        return rooms;
+    }
+
+    public void save(File file) throws IOException {
+        byte[] encoded = world.getEncoded();
+        int length = 4 + 4 + 4 + encoded.length + 4;
+        for (RoomState room : rooms) {
+            length += 12;
+            for (PlayerStats ps : room.bots) {
+                length += ps.encodedLength();
+            }
+            for (ShotFired sf : room.shots) {
+                length += sf.encodedLength();
+            }
+            for (Handoff handoff : room.players) {
+                length += handoff.encodedLength();
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(MAGIC);
+        buf.putInt(world.getSize());
+        buf.putInt(encoded.length);
+        buf.put(encoded);
+        buf.putInt(rooms.size());
+        for (RoomState room : rooms) {
+            buf.putInt(room.bots.size());
+            for (PlayerStats ps : room.bots) {
+                ps.write(buf);
+            }
+            buf.putInt(room.shots.size());
+            for (ShotFired sf : room.shots) {
+                sf.write(buf);
+            }
+            buf.putInt(room.players.size());
+            for (Handoff handoff : room.players) {
+                handoff.write(buf);
+            }
+        }
+        buf.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static Checkpoint load(File file) throws IOException {
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buf.getInt() != MAGIC) {
+            throw new IOException(file + " isn't a checkpoint");
+        }
+        int size = buf.getInt();
+        byte[] encoded = new byte[buf.getInt()];
+        buf.get(encoded);
+        GameWorld world = GameWorld.decode(size, encoded, encoded.length);
+
+        int roomCount = buf.getInt();
+        List<RoomState> rooms = new ArrayList<>();
+        for (int ii = 0; ii < roomCount; ii++) {
+            List<PlayerStats> bots = new ArrayList<>();
+            for (int jj = buf.getInt(); jj > 0; jj--) {
+                bots.add(PlayerStats.read(buf));
+            }
+            List<ShotFired> shots = new ArrayList<>();
+            for (int jj = buf.getInt(); jj > 0; jj--) {
+                shots.add(ShotFired.read(buf));
+            }
+            List<Handoff> players = new ArrayList<>();
+            for (int jj = buf.getInt(); jj > 0; jj--) {
+                players.add(Handoff.read(buf));
+            }
+            rooms.add(new RoomState(bots, shots, players));
+        }
+        return new Checkpoint(world, rooms);
+    }
+}
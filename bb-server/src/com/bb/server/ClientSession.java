@@ -0,0 +1,21 @@
+package com.bb.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One client connection, independent of the thread or event loop that owns its channel.
+ */
+public interface ClientSession {
+    /**
+     * Reads whatever the client has sent straight into the session's own buffer.  Returns -1 at end of stream.
+     */
+    int readFrom(SocketChannel sc) throws IOException;
+
+    /**
+     * Writes as much queued output as the channel will take without blocking.  Returns true once nothing is left.
+     */
+    boolean writePending() throws IOException;
+
+    void disconnected();
+}
@@ -1,229 +1,1141 @@
 package com.bb.server;
 
 import com.bb.common.data.*;
-import com.bb.common.net.DataAccumulator;
+import com.bb.common.net.Codec;
+import com.bb.common.net.FrameBuffer;
+import com.bb.common.net.MpscRing;
+import com.bb.common.net.WireFormat;
 
 import java.awt.*;
-import java.awt.event.KeyEvent;
+import java.awt.geom.Line2D;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.bb.common.data.GameWorld.CELL_SIZE;
 
+/**
+ * Hosts any number of independent matches, each in its own Room.  Connecting clients are handed to a room by the
+ * Matchmaker, and every room is ticked on a shared pool of threads, one per core.
+ */
 public class DemoServer {
+    /**
+     * Arguments: [io mode] [map file] [map size] [extra bots] [room capacity] [recording directory]
+     * [checkpoint file].  An existing map file is memory-mapped read-only; a missing one is generated at the given
+     * size (default 30) and saved there first.  Every room plays on the same map, and the extra bots go in the first
+     * room.  Given a recording directory, every room records its match there for ReplayServer.  Given a checkpoint
+     * file, the server checkpoints to it as it runs, and if it already exists starts from it instead of the map file
+     * and extra bots.
+     */
     public static void main(String[] args) throws IOException {
-        new DemoServer(8080).go();
+        IoMode mode = args.length > 0 ? IoMode.valueOf(args[0].toUpperCase()) : IoMode.THREADS;
+        File checkpointFile = args.length > 6 ? new File(args[6]) : null;
+        Checkpoint checkpoint = null;
+        if (checkpointFile != null && checkpointFile.exists()) {
+            long start = System.nanoTime();
+            checkpoint = Checkpoint.load(checkpointFile);
+            System.out.println("Loaded " + checkpointFile + " in " + (System.nanoTime() - start) / 1000 + " us");
+        }
+
+        GameWorld world;
+        if (checkpoint != null) {
+            world = checkpoint.getWorld();
+        } else if (args.length > 1) {
+            File mapFile = new File(args[1]);
+            if (mapFile.exists()) {
+                world = GameWorld.load(mapFile);
+            } else {
+                world = createRandomWorld(args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WORLD_SIZE);
+                world.save(mapFile);
+            }
+        } else {
+            world = createRandomWorld(DEFAULT_WORLD_SIZE);
+        }
+        DemoServer server = new DemoServer(8080, mode, world);
+        if (args.length > 5) {
+            server.setRecordingDirectory(new File(args[5]));
+        }
+        if (checkpoint != null) {
+            server.restore(checkpoint);
+        } else if (args.length > 3) {
+            server.addBots(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            server.setRoomCapacity(Integer.parseInt(args[4]));
+        }
+        if (checkpointFile != null) {
+            server.setCheckpointFile(checkpointFile);
+        }
+        server.go();
     }
 
+    public static GameWorld createRandomWorld(int size) {
+        GameWorld world = new GameWorld(size);
+        world.populateRandomWalls();
+        return world;
+    }
+
+    /**
+     * How client connections are serviced.  THREADS gives each client its own polling thread, REACTOR multiplexes
+     * every client over one Selector per core, and VIRTUAL gives each client a pair of virtual threads doing
+     * blocking reads and writes (platform threads on JVMs without virtual threads).
+     */
+    public enum IoMode {
+        THREADS,
+        REACTOR,
+        VIRTUAL
+    }
+
+    // How long a new connection has to ask for the binary protocol before it is treated as a text client
+    private static final long HANDSHAKE_TIMEOUT = 250;
+
+    public static final int DEFAULT_WORLD_SIZE = 30;
+    public static final int TICK_RATE = 60;
+    // How far around its player each client gets to see, in pixels.  Zero or less sends everyone everything.
+    public static final double DEFAULT_VIEW_RADIUS = 500;
+    // Width and height of a SpatialGrid bucket, in world cells
+    public static final int CELLS_PER_BUCKET = 8;
+    // Pixels per second, the same pace players used to get from one pixel per 5 ms loop
+    public static final double PLAYER_SPEED = Movement.PLAYER_SPEED;
+    // Ticks between snapshots; clients interpolate between them, so they don't need one every tick
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 2;
+    public static final int SHOT_DAMAGE = 10;
+    // Messages waiting to go out to one client: a few seconds of snapshots plus the welcome messages
+    public static final int OUTBOUND_CAPACITY = 256;
+    // Input frames queued per client: about a second at the client's 60 Hz
+    public static final int INPUT_CAPACITY = 64;
+    // Queued input frames a client may run ahead by before we apply more than one a tick to catch up
+    public static final int INPUT_BACKLOG = 3;
+    // Local port for the Prometheus /metrics endpoint
+    public static final int DEFAULT_METRICS_PORT = 9180;
+    // Players the matchmaker puts in a room before opening another
+    public static final int DEFAULT_ROOM_CAPACITY = 16;
+    // Between checkpoints, in milliseconds; rooms hand over their state once a second
+    public static final long CHECKPOINT_INTERVAL = 5000;
+    // How long players restored from a checkpoint wait for their clients before they are forgotten
+    public static final long RESTORE_TIMEOUT = 60000;
+
     private int port;
+    private IoMode mode;
+    // The map every room plays on
     private GameWorld world;
-    private Map<String, PlayerStats> gameState;
-    private List<ShotFired> shots;
-    private Map<String, List<ShotFired>> shotsToTransmit;
-    private List<Point> obstacles;
+    private Matchmaker matchmaker;
+    // Shared by every room; a room is only ever ticked by one of them at a time
+    private ScheduledExecutorService tickThreads;
+    private Reactor reactor;
+    private double viewRadius;
+    private int snapshotInterval;
+    private int roomCapacity;
+    private ServerMetrics metrics;
+    private int metricsPort;
+    // Set when this process simulates one region of a bigger world; the first room plays that region
+    private RegionLink region;
+    // Where rooms record their matches, if anywhere
+    private File recordingDirectory;
+    private File checkpointFile;
+    // Players restored from a checkpoint, by session token, until their clients resume them or RESTORE_TIMEOUT
+    private Map<Long, Handoff> restored = new ConcurrentHashMap<>();
+    private volatile long restoredUntil;
+    private Random sessionTokens = new SecureRandom();
 
     public DemoServer(int port) {
+        this(port, IoMode.THREADS);
+    }
+
+    public DemoServer(int port, IoMode mode) {
+        this(port, mode, createRandomWorld(DEFAULT_WORLD_SIZE));
+    }
+
+    public DemoServer(int port, IoMode mode, GameWorld world) {
         this.port = port;
-        world = new GameWorld(30);
-        world.populateRandomWalls();
-        populateObstacles();
-        gameState = new HashMap<>();
-        shots = new ArrayList<>();
-        shotsToTransmit = new HashMap<>();
+        this.mode = mode;
+        this.world = world;
+        viewRadius = DEFAULT_VIEW_RADIUS;
+        snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        roomCapacity = DEFAULT_ROOM_CAPACITY;
+        metrics = new ServerMetrics();
+        metricsPort = DEFAULT_METRICS_PORT;
+        tickThreads = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
+                new TickThreadFactory());
+        matchmaker = new Matchmaker();
     }
 
-    private void populateObstacles() {
-        synchronized (world) {
-            obstacles = new ArrayList<>();
-            for (int ii = 0; ii < world.getSize(); ii++) {
-                for (int jj = 0; jj < world.getSize(); jj++) {
-                    if (world.get(ii, jj) == TerrainType.WALL) {
-                        obstacles.add(new Point(ii, jj));
-                    }
-                }
-            }
+    public void setViewRadius(double viewRadius) {
+        this.viewRadius = viewRadius;
+    }
+
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+    }
+
+    /**
+     * Players per room.  Rooms that are already fuller than this keep their players.
+     */
+    public void setRoomCapacity(int roomCapacity) {
+        this.roomCapacity = Math.max(1, roomCapacity);
+    }
+
+    /**
+     * Port for the Prometheus endpoint on localhost; zero or less turns it off.  Must be set before go().
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * Makes the first room one region of a world split across processes.  Must be set before go().
+     */
+    public void setRegion(RegionLink region) {
+        this.region = region;
+    }
+
+    /**
+     * Records every room opened from now on to its own directory under this one.
+     */
+    public void setRecordingDirectory(File recordingDirectory) {
+        this.recordingDirectory = recordingDirectory;
+    }
+
+    /**
+     * Saves a Checkpoint to this file every CHECKPOINT_INTERVAL while the server runs.  Must be set before go().
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Reopens the rooms in a checkpoint with their bots and shots, and holds on to their players until the clients
+     * come back with a Resume.  A resumed player gets their position and health back in whichever room the matchmaker
+     * gives the new connection, as that is decided before the Resume arrives.  Restored rooms other than the first
+     * that nobody has joined by RESTORE_TIMEOUT are closed.  Call before go() on a server made with the checkpoint's
+     * world.
+     */
+    public void restore(Checkpoint checkpoint) {
+        restoredUntil = System.currentTimeMillis() + RESTORE_TIMEOUT;
+        for (Checkpoint.RoomState state : checkpoint.getRooms()) {
+            matchmaker.restore(state);
         }
     }
 
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     public void go() throws IOException {
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.bind(new InetSocketAddress(port));
 
-        addBot(200, 200);
+        metrics.registerMBean();
+        if (metricsPort > 0) {
+            new MetricsHttpServer(metrics, metricsPort).start();
+            System.out.println("Metrics at http://localhost:" + metricsPort + "/metrics");
+        }
 
-        new GameManagerThread().start();
+        if (mode == IoMode.REACTOR) {
+            reactor = new Reactor(Runtime.getRuntime().availableProcessors(), this::newClient, metrics.loopMicros);
+            reactor.start();
+        }
 
-        System.out.println("Server ready");
+        // The first room runs from the start, bots and all, whether or not anyone has joined
+        matchmaker.first();
+        if (checkpointFile != null) {
+            new CheckpointThread().start();
+        }
+
+        if (mode == IoMode.VIRTUAL && !VirtualThreads.isAvailable()) {
+            System.out.println("Virtual threads aren't available on this JVM; using platform threads");
+        }
+        System.out.println("Server ready (" + mode + ")");
         while (true) {
             SocketChannel sc = ssc.accept();
             System.out.println("Client connected");
-            new HandlerThread(sc).start();
+            if (reactor != null) {
+                reactor.register(sc);
+            } else if (mode == IoMode.VIRTUAL) {
+                new BlockingConnection(sc).start();
+            } else {
+                new HandlerThread(sc).start();
+            }
         }
     }
 
-    private void addBot(int x, int y) {
-        PlayerStats bot = new PlayerStats(generateRandomPlayerId(), x, y, 100, true);
-        synchronized (gameState) {
-            gameState.put(bot.getPlayerId(), bot);
-        }
-        new BotHandlerThread(bot).start();
+    /**
+     * A session for a new connection, in whichever room the matchmaker picks.
+     */
+    private Room.ClientHandler newClient(SocketChannel sc) {
+        Room room = matchmaker.assign();
+        return room.new ClientHandler(sc);
+    }
+
+    /**
+     * Spawns a bot in the first room at (x, y) and returns its handle, for removeBot().  Safe to call while the
+     * server is running.
+     */
+    public int addBot(double x, double y) {
+        Room room = matchmaker.first();
+        return room.onTick(() -> room.bots.add(x, y));
     }
 
-    private class BotHandlerThread extends Thread {
-        PlayerStats bot;
+    /**
+     * Spawns count bots in the first room, in the middle of randomly chosen open cells, on its next tick.
+     */
+    public void addBots(int count) {
+        Room room = matchmaker.first();
+        room.pending.add(() -> room.addBots(count));
+    }
+
+    public boolean removeBot(int handle) {
+        Room room = matchmaker.first();
+        return room.onTick(() -> room.bots.remove(handle));
+    }
+
+    public int getBotCount() {
+        return matchmaker.first().bots.size();
+    }
 
-        public BotHandlerThread(PlayerStats bot) {
-            this.bot = bot;
+    public int getRoomCount() {
+        return matchmaker.size();
+    }
+
+    private static class TickThreadFactory implements java.util.concurrent.ThreadFactory {
+        private AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable task) {
+            Thread ret = new Thread(task, "room-tick-" + count.incrementAndGet());
+            ret.setDaemon(true);
+            return ret;
         }
+    }
 
-        public void run() {
-            int[] dx = new int[] { 0, 1, 0, -1 };
-            int[] dy = new int[] { 1, 0, -1, 0 };
+    /**
+     * Hands each new connection to the oldest room with space, opening a room when they are all full.  Rooms other
+     * than the first are closed when their last player leaves, or if restored, when nobody has joined them by
+     * RESTORE_TIMEOUT, so the first always exists to take bots.
+     */
+    private class Matchmaker {
+        private List<Room> rooms = new ArrayList<>();
+        private ReentrantLock lock = new ReentrantLock();
+        private int nextId;
+
+        Room first() {
+            lock.lock();
+            try {
+                if (rooms.isEmpty()) {
+                    open();
+                }
+                return rooms.get(0);
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            while (true) {
-                try {
-                    Thread.sleep(5);
+        int size() {
+            lock.lock();
+            try {
+                return rooms.size();
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                    int dir = (int)(Math.random() * dx.length);
+        Room assign() {
+            lock.lock();
+            try {
+                for (Room room : rooms) {
+                    if (room.members < roomCapacity) {
+                        room.members++;
+                        return room;
+                    }
+                }
+                Room ret = open();
+                ret.members++;
+                return ret;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                    double newX = bot.getX() + dx[dir];
-                    double newY = bot.getY() + dy[dir];
+        void release(Room room) {
+            lock.lock();
+            try {
+                room.members--;
+                closeIfEmpty(room);
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                    int xBlock = (int)(newX / CELL_SIZE);
-                    int yBlock = (int)(newY / CELL_SIZE);
+        /**
+         * Closes the room if nobody is in it, unless it is the first.
+         */
+        void closeIfEmpty(Room room) {
+            lock.lock();
+            try {
+                if (room.members == 0 && rooms.get(0) != room && rooms.remove(room)) {
+                    room.close();
+                    System.out.println("Closed room " + room.id + " (" + rooms.size() + " open)");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                    if (world.get(xBlock, yBlock) != TerrainType.WALL) {
-                        bot.setX(newX);
-                        bot.setY(newY);
+        /**
+         * The latest state each room has put aside for a checkpoint.
+         */
+        List<Checkpoint.RoomState> checkpointStates() {
+            lock.lock();
+            try {
+                List<Checkpoint.RoomState> ret = new ArrayList<>();
+                for (Room room : rooms) {
+                    if (room.checkpoint != null) {
+                        ret.add(room.checkpoint);
                     }
+                }
+                return ret;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+        void restore(Checkpoint.RoomState state) {
+            lock.lock();
+            try {
+                Room ret = new Room(nextId++, world);
+                ret.awaitingRestore = true;
+                rooms.add(ret);
+                for (PlayerStats ps : state.getBots()) {
+                    int handle = ret.bots.add(ps.getX(), ps.getY());
+                    ret.entities.setHealth(handle, ps.getHealth());
+                }
+                ret.shots.addAll(state.getShots());
+                for (Handoff player : state.getPlayers()) {
+                    restored.put(player.getToken(), player);
                 }
+                ret.start();
+                System.out.println("Restored room " + ret.id + " (" + state.getBots().size() + " bots, "
+                        + state.getPlayers().size() + " players to resume)");
+            } finally {
+                lock.unlock();
             }
         }
+
+        private Room open() {
+            Room ret = new Room(nextId++, world);
+            rooms.add(ret);
+            // Something for the first player in to shoot at
+            ret.bots.add(200, 200);
+            ret.start();
+            System.out.println("Opened room " + ret.id + " (" + rooms.size() + " open)");
+            return ret;
+        }
     }
 
-    private class HandlerThread extends Thread {
-        SocketChannel sc;
-        String playerId;
-        long lastShotTime;
-        long shotInterval = 150;
+    /**
+     * One match: its own players, bots and shots on its own world, and the clients playing it.  A room schedules its
+     * own ticks on the shared tick threads, and as only one tick of a room is ever pending it never runs on two
+     * threads at once, so nothing it owns needs locking.  Other threads that need to add or remove players or bots
+     * queue the change in pending for the tick to make, so the tick is the only thread that touches the entities.  A
+     * room that overruns only holds up its own thread; the others carry on with the rest.
+     */
+    private class Room implements Runnable {
+        private int id;
+        private GameWorld world;
+        private EntityStore entities;
+        // Only touched by the tick
+        private List<ShotFired> shots;
+        // Fired since the last snapshot went out
+        private List<ShotFired> shotsSinceSnapshot;
+        private Raycaster raycaster;
+        private SpatialGrid grid;
+        private LagCompensator lagCompensator;
+        private BotEngine bots;
+        private List<ClientHandler> clients;
+        // Joins, leaves and bot changes from other threads, made at the start of the next tick
+        private Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        // Clients the matchmaker has sent here, guarded by its lock
+        private int members;
+        // Restored from a checkpoint and not yet checked for members after RESTORE_TIMEOUT; only touched by the tick
+        private boolean awaitingRestore;
+        // The world as each wire format sends it on join, rebuilt only when the terrain version changes
+        private ByteBuffer[] worldMessages;
+        private int worldMessagesVersion;
+        private ReentrantLock worldMessagesLock = new ReentrantLock();
+        private RegionLink region;
+        // Null unless the server is recording; the shots and inputs below are only collected for it
+        private MatchRecorder recorder;
+        private List<ShotFired> firedThisTick = new ArrayList<>();
+        private Map<String, ClientInput> appliedInputs = new HashMap<>();
+        // Put aside once a second for the checkpoint thread, if the server is checkpointing
+        private volatile Checkpoint.RoomState checkpoint;
+        private long tick;
+        private long nextTick;
+        private volatile boolean closed;
+        // What this room last added to the server wide population gauges
+        private int reportedPlayers, reportedBots, reportedShots;
+        private ByteBuffer[] scratch = new ByteBuffer[WireFormat.values().length];
+        private Codec[] encoders = new Codec[WireFormat.values().length];
+
+        private Room(int id, GameWorld world) {
+            this.id = id;
+            this.world = world;
+            this.region = id == 0 ? DemoServer.this.region : null;
+            raycaster = new Raycaster(world);
+            grid = new SpatialGrid(world.getSize(), CELLS_PER_BUCKET);
+            lagCompensator = new LagCompensator(grid, PLAYER_SPEED / TICK_RATE);
+            entities = new EntityStore();
+            bots = new BotEngine(entities, world, PLAYER_SPEED / TICK_RATE);
+            shots = new ArrayList<>();
+            shotsSinceSnapshot = new ArrayList<>();
+            clients = new CopyOnWriteArrayList<>();
+            worldMessages = new ByteBuffer[WireFormat.values().length];
+            for (WireFormat format : WireFormat.values()) {
+                scratch[format.ordinal()] = ByteBuffer.allocate(16 * 1024);
+                encoders[format.ordinal()] = format.newCodec();
+            }
+            if (recordingDirectory != null) {
+                String name = "room-" + id + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+                try {
+                    recorder = new MatchRecorder(new File(recordingDirectory, name), world);
+                } catch (IOException ex) {
+                    System.out.println("Not recording room " + id + ": " + ex.getMessage());
+                }
+            }
+        }
 
-        public HandlerThread(SocketChannel sc) {
-            this.sc = sc;
+        void start() {
+            metrics.roomOpened();
+            if (recorder != null) {
+                recorder.start();
+            }
+            nextTick = System.nanoTime();
+            tickThreads.execute(this);
         }
 
-        public void run() {
-            DataAccumulator dac = new DataAccumulator();
-            boolean[] keyDown = new boolean[256];
+        /**
+         * Stops the room at its next tick.
+         */
+        void close() {
+            closed = true;
+        }
 
+        /**
+         * Runs one tick at a fixed TICK_RATE, then schedules the next.
+         */
+        public void run() {
+            if (closed) {
+                metrics.changePopulation(-reportedPlayers, -reportedBots, -reportedShots);
+                metrics.roomClosed();
+                if (recorder != null) {
+                    recorder.close();
+                }
+                return;
+            }
             try {
-                sc.configureBlocking(false);
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                long start = System.nanoTime();
+                tick();
+                metrics.tickMicros.record((System.nanoTime() - start) / 1000);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
 
-                long lastTransmitTime = 0;
+            nextTick += 1000000000L / TICK_RATE;
+            long delay = nextTick - System.nanoTime();
+            if (delay < 0) {
+                // Running behind; start the next tick now rather than trying to catch up
+                nextTick = System.nanoTime();
+                delay = 0;
+            }
+            tickThreads.schedule(this, delay, TimeUnit.NANOSECONDS);
+        }
 
-                // TODO: Figure out where to spawn in new players
+        /**
+         * Runs task on the room's next tick and waits for its result.  Must not be called from the tick itself.
+         */
+        <T> T onTick(Callable<T> task) {
+            FutureTask<T> future = new FutureTask<>(task);
+            pending.add(future);
+            try {
+                return future.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Spawns count bots in the middle of randomly chosen open cells.
+         */
+        void addBots(int count) {
+            Random random = new Random();
+            int size = world.getSize();
+            for (int ii = 0; ii < count; ii++) {
+                int xBlock, yBlock;
+                do {
+                    xBlock = random.nextInt(size);
+                    yBlock = random.nextInt(size);
+                } while (world.get(xBlock, yBlock) == TerrainType.WALL);
+                bots.add((xBlock + 0.5) * CELL_SIZE, (yBlock + 0.5) * CELL_SIZE);
+            }
+        }
 
-                playerId = generateRandomPlayerId();
-                PlayerStats playerStats = new PlayerStats(playerId, 50, 50, 100, false);
+        /**
+         * Returns a read-only buffer holding the world as it should be sent to a joining client.  Binary clients get
+         * the compressed encoding split into WorldChunks; text clients get the plain GameWorld message.
+         */
+        private ByteBuffer getWorldMessage(WireFormat format) {
+            worldMessagesLock.lock();
+            try {
+                if (worldMessagesVersion != world.getVersion()) {
+                    Arrays.fill(worldMessages, null);
+                    worldMessagesVersion = world.getVersion();
+                }
 
-                synchronized (gameState) {
-                    gameState.put(playerId, playerStats);
+                ByteBuffer ret = worldMessages[format.ordinal()];
+                if (ret == null) {
+                    Codec encoder = format.newCodec();
+                    ByteBuffer buf = ByteBuffer.allocate(4096);
+                    if (format == WireFormat.BINARY) {
+                        byte[] encoded = world.getEncoded();
+                        for (int offset = 0; offset < encoded.length; offset += WorldChunk.CHUNK_SIZE) {
+                            int length = Math.min(WorldChunk.CHUNK_SIZE, encoded.length - offset);
+                            buf = encoder.encode(new WorldChunk(world.getVersion(), world.getSize(), encoded.length,
+                                    offset, encoded, offset, length), buf);
+                        }
+                    } else {
+                        buf = encoder.encode(world, buf);
+                    }
+                    buf.flip();
+                    ret = buf.asReadOnlyBuffer();
+                    worldMessages[format.ordinal()] = ret;
                 }
+                return ret.duplicate();
+            } finally {
+                worldMessagesLock.unlock();
+            }
+        }
 
-                sendPositionToPlayer(sc, playerStats);
-                sendWorldToClient(sc);
+        private void tick() {
+            tick++;
 
-                while (true) {
-                    readUpdatesFromClient(dac, buffer);
+            Runnable change;
+            while ((change = pending.poll()) != null) {
+                change.run();
+            }
+
+            if (awaitingRestore && tick % TICK_RATE == 0 && System.currentTimeMillis() > restoredUntil) {
+                // Its players have resumed elsewhere or given up; don't keep ticking its bots for nobody
+                awaitingRestore = false;
+                matchmaker.closeIfEmpty(this);
+            }
+            if (region != null) {
+                region.receive(entities);
+            }
+            for (ClientHandler client : clients) {
+                client.applyInputs();
+            }
+            bots.step();
+            if (region != null) {
+                handOffLeavers();
+            }
 
-                    ClientShotAttempt csa = processUpdatesFromClient(dac, keyDown);
+            expireShots();
+
+            Map<String, PlayerStats> current = captureState();
+            // Everyone our clients see: our own entities, and with a region the players next door too
+            Map<String, PlayerStats> visible = current;
+            if (region != null) {
+                if (tick % snapshotInterval == 0) {
+                    region.mirror(current);
+                }
+                // From here on the ghosts are seen, and can be shot, like our own; they are their own region's to
+                // checkpoint and record, so current stays without them
+                visible = new HashMap<>(current);
+                region.addGhosts(visible);
+            }
+            grid.rebuild(visible.values());
+            lagCompensator.record(tick, entities);
+            reportPopulation(entities.size() - bots.size(), bots.size(), shots.size());
+            if (tick % snapshotInterval == 0) {
+                sendSnapshots(visible);
+            }
+            if (checkpointFile != null && tick % TICK_RATE == 0) {
+                checkpoint = checkpointState(current);
+            }
+            if (recorder != null) {
+                // Handed over rather than copied; nothing changes current after this point
+                recorder.record(tick, current, firedThisTick, appliedInputs);
+                firedThisTick = new ArrayList<>();
+                appliedInputs = new HashMap<>();
+            }
 
-                    updatePlayerState(keyDown, csa);
+            if (reactor != null) {
+                // Only this room's connections; the loops that own none of them sleep on
+                for (ClientHandler client : clients) {
+                    reactor.flush(client);
+                }
+            }
+            if (region != null) {
+                region.flush();
+            }
+        }
 
-                    if (System.currentTimeMillis() - lastTransmitTime > 20) {
-                        sendStateToClient(sc);
-                        lastTransmitTime = System.currentTimeMillis();
+        /**
+         * Sends every player who has walked out of our region to the server that owns where they are now.  Bots
+         * aren't handed off; whoever spawned one keeps simulating it and mirrors it like any other.
+         */
+        private void handOffLeavers() {
+            for (ClientHandler client : clients) {
+                if (client.handle == EntityStore.NO_HANDLE) {
+                    continue;
+                }
+                int to = region.leaving(client.player.getX(), client.player.getY());
+                if (to >= 0) {
+                    Redirect redirect = region.handOff(to, client.player);
+                    if (redirect != null) {
+                        client.redirect(redirect);
                     }
+                }
+            }
+        }
 
-                    Thread.sleep(5);
+        private void sendSnapshots(Map<String, PlayerStats> current) {
+            boolean filtered = viewRadius > 0;
+
+            // Only used unfiltered: keyed by format and then by the baseline tick the delta was encoded against
+            List<Map<Long, ByteBuffer>> snapshots = new ArrayList<>();
+            for (int ii = 0; ii < WireFormat.values().length; ii++) {
+                snapshots.add(new HashMap<Long, ByteBuffer>());
+            }
+
+            for (ClientHandler client : clients) {
+                if (client.format == null) {
+                    continue;
                 }
-            } catch (Exception ex) {
-                if (ex.getMessage() != null && ex.getMessage().startsWith("Connection reset")) {
-                    System.out.println("Client disconnected");
-                } else {
-                    ex.printStackTrace();
+                int format = client.format.ordinal();
+
+                PlayerStats me = entities.isAlive(client.handle) ? current.get(entities.getId(client.handle)) : null;
+                Map<String, PlayerStats> visible = current;
+                List<ShotFired> visibleShots = shotsSinceSnapshot;
+                if (filtered) {
+                    visible = new HashMap<>();
+                    visibleShots = new ArrayList<>();
+                    if (me != null) {
+                        grid.query(me.getX(), me.getY(), viewRadius, visible);
+                        for (ShotFired sf : shotsSinceSnapshot) {
+                            if (Line2D.ptSegDist(sf.getOrigin().x, sf.getOrigin().y, sf.getTarget().x,
+                                    sf.getTarget().y, me.getX(), me.getY()) <= viewRadius) {
+                                visibleShots.add(sf);
+                            }
+                        }
+                    }
+                }
+
+                client.history.put(tick, visible);
+                Map<String, PlayerStats> baseline = client.history.get(client.ackedTick);
+                long baseTick = (baseline == null) ? SnapshotDelta.FULL : client.ackedTick;
+
+                ByteBuffer snapshot = filtered ? null : snapshots.get(format).get(baseTick);
+                if (snapshot == null) {
+                    snapshot = encodeSnapshot(format, SnapshotDelta.between(baseTick, baseline, tick, visible), visibleShots);
+                    if (!filtered) {
+                        snapshots.get(format).put(baseTick, snapshot);
+                    }
                 }
+                client.enqueueSnapshot(snapshot.duplicate(), visibleShots.size());
             }
+            shotsSinceSnapshot.clear();
+        }
 
-            if (playerId != null) {
-                synchronized (gameState) {
-                    gameState.remove(playerId);
+        /**
+         * What a checkpoint needs from this room, made from the copy of everyone this tick has already taken, so
+         * saving it never holds up the tick.
+         */
+        private Checkpoint.RoomState checkpointState(Map<String, PlayerStats> current) {
+            List<PlayerStats> botStates = new ArrayList<>();
+            for (PlayerStats ps : current.values()) {
+                if (ps.isBot()) {
+                    botStates.add(ps);
+                }
+            }
+            List<Handoff> players = new ArrayList<>();
+            for (ClientHandler client : clients) {
+                int handle = client.handle;
+                PlayerStats ps = handle == EntityStore.NO_HANDLE ? null : current.get(entities.getId(handle));
+                if (ps != null) {
+                    players.add(new Handoff(client.token, ps.getX(), ps.getY(), ps.getHealth()));
                 }
             }
+            return new Checkpoint.RoomState(botStates, new ArrayList<>(shots), players);
+        }
+
+        private void reportPopulation(int players, int botCount, int activeShots) {
+            metrics.changePopulation(players - reportedPlayers, botCount - reportedBots, activeShots - reportedShots);
+            reportedPlayers = players;
+            reportedBots = botCount;
+            reportedShots = activeShots;
         }
 
+        private void expireShots() {
+            Iterator<ShotFired> iter = shots.iterator();
+            while (iter.hasNext()) {
+                ShotFired sf = iter.next();
+                if (sf.expired()) {
+                    iter.remove();
+                }
+            }
+        }
 
-        private void sendPositionToPlayer(SocketChannel sc, PlayerStats playerStats) throws IOException {
-            sc.write(ByteBuffer.wrap((playerStats.toString() + DataAccumulator.DELIMITER).getBytes()));
+        /**
+         * Copies the current player state so later ticks can be diffed against it.
+         */
+        private Map<String, PlayerStats> captureState() {
+            Map<String, PlayerStats> ret = new HashMap<>();
+            for (int hh = 0; hh < entities.highWater(); hh++) {
+                if (entities.isAlive(hh)) {
+                    PlayerStats pp = entities.copy(hh);
+                    ret.put(pp.getPlayerId(), pp);
+                }
+            }
+            return ret;
         }
 
-        private void sendWorldToClient(SocketChannel sc) throws IOException {
-            sc.write(ByteBuffer.wrap((world.toString() + DataAccumulator.DELIMITER).getBytes()));
+        private ByteBuffer encodeSnapshot(int format, SnapshotDelta delta, List<ShotFired> shots) {
+            Codec encoder = encoders[format];
+            ByteBuffer buf = scratch[format];
+            buf.clear();
+            buf = encoder.encode(delta, buf);
+            for (ShotFired sf : shots) {
+                buf = encoder.encode(sf, buf);
+            }
+            scratch[format] = buf;
+
+            buf.flip();
+            ByteBuffer snapshot = ByteBuffer.allocate(buf.remaining());
+            snapshot.put(buf).flip();
+            return snapshot.asReadOnlyBuffer();
         }
 
-        private void readUpdatesFromClient(DataAccumulator dac, ByteBuffer buffer) throws IOException {
-            int bytesRead = sc.read(buffer);
-            if (bytesRead > 0) {
-                dac.accumulate(buffer.array(), bytesRead);
-                buffer.clear();
+        private void damage(int handle) {
+            if (entities.isAlive(handle)) {
+                entities.setHealth(handle, Math.max(0, entities.getHealth(handle) - SHOT_DAMAGE));
             }
         }
 
-        private void updatePlayerState(boolean[] keyDown, ClientShotAttempt shotAttempt) {
-            PlayerStats ppos = null;
-            synchronized (gameState) {
-                ppos = gameState.get(playerId);
+        /**
+         * One client connection.  Whoever owns the channel (a HandlerThread or a Reactor event loop) reads into it and
+         * drains its outbound queue; its room applies its queued input once per tick.
+         */
+        private class ClientHandler implements ClientSession {
+            SocketChannel sc;
+            // Slot in entities, and a view onto it, once joined
+            volatile int handle = EntityStore.NO_HANDLE;
+            PlayerStats player;
+            long lastShotTime;
+            long shotInterval = 150;
+            long handshakeDeadline;
+            // Given to the client when it joins, so it can get its player back from a checkpoint
+            long token;
+            // Buttons held during the last input frame applied, repeated on ticks when no new frame has arrived
+            int buttons;
+            InputQueue inputs = new InputQueue(INPUT_CAPACITY);
+            // The frames applied this tick, for the room's recorder
+            byte[] appliedButtons = new byte[INPUT_CAPACITY];
+            int[] appliedAimX = new int[INPUT_CAPACITY];
+            int[] appliedAimY = new int[INPUT_CAPACITY];
+            int appliedCount;
+            FrameBuffer in;
+            // Set once the tick has spawned the client's player; dac is set as soon as the protocol is known
+            volatile WireFormat format;
+            volatile Codec dac;
+            Queue<Object> inbound;
+            // Filled by the room's tick and the reading thread, drained only by the writing thread
+            MpscRing<ByteBuffer> outbound;
+            volatile boolean overflowed;
+            ServerMetrics.Connection stats;
+            // Parked waiting for something to send, in VIRTUAL mode
+            volatile Thread writer;
+            ReentrantLock joinLock = new ReentrantLock();
+            // Newest snapshot the client has rebuilt; deltas are encoded against it
+            volatile long ackedTick = SnapshotDelta.FULL;
+            // What this client could see at each recent tick
+            SnapshotHistory history = new SnapshotHistory();
+            // Built from the timing packets the client sends back, used to work out what it was looking at when it
+            // fired
+            LatencyEstimator latency = new LatencyEstimator();
+
+            public ClientHandler(SocketChannel sc) {
+                this.sc = sc;
+                this.in = new FrameBuffer();
+                this.inbound = new ConcurrentLinkedQueue<>();
+                this.outbound = new MpscRing<>(OUTBOUND_CAPACITY);
+                this.handshakeDeadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+                this.stats = metrics.connect(outbound::size);
+                clients.add(this);
+            }
+
+            /**
+             * The first byte from the client picks the protocol: WireFormat.HANDSHAKE selects binary, any other byte is
+             * the start of a text message and is kept.
+             */
+            public int readFrom(SocketChannel sc) throws IOException {
+                int bytesRead = in.readFrom(sc);
+                stats.bytesRead(bytesRead);
+                if (dac == null && in.available() > 0) {
+                    if (in.get(0) == WireFormat.HANDSHAKE) {
+                        in.consume(1);
+                        join(WireFormat.BINARY);
+                    } else {
+                        join(WireFormat.TEXT);
+                    }
+                }
+                if (format != null) {
+                    decodeUpdatesFromClient();
+                }
+                return bytesRead;
             }
 
-            // TODO: Check for obstacles
-            int dx = 0, dy = 0;
-            if (keyDown[KeyEvent.VK_UP]) {
-                dy = -1;
-            } else if (keyDown[KeyEvent.VK_DOWN]) {
-                dy = 1;
+            public boolean writePending() throws IOException {
+                if (overflowed) {
+                    throw new IOException("Outbound queue overflowed");
+                }
+                ByteBuffer buf;
+                while ((buf = outbound.peek()) != null) {
+                    stats.bytesWritten(sc.write(buf));
+                    if (buf.hasRemaining()) {
+                        return false;
+                    }
+                    outbound.poll();
+                }
+                return true;
             }
-            if (keyDown[KeyEvent.VK_LEFT]) {
-                dx = -1;
-            } else if (keyDown[KeyEvent.VK_RIGHT]) {
-                dx = 1;
+
+            public void disconnected() {
+                if (!clients.remove(this)) {
+                    return;
+                }
+                matchmaker.release(Room.this);
+                metrics.disconnect(stats);
+                pending.add(this::leave);
             }
 
-            double newX = ppos.getX() + dx;
-            double newY = ppos.getY() + dy;
-            int xBlock = (int)(newX / CELL_SIZE);
-            int yBlock = (int)(newY / CELL_SIZE);
+            /**
+             * Called once per tick by the room.
+             */
+            void applyInputs() {
+                if (format == null) {
+                    // Not in the game until the tick has run spawn()
+                    if (dac == null && System.currentTimeMillis() >= handshakeDeadline) {
+                        join(WireFormat.TEXT);
+                    }
+                    return;
+                }
 
-            if (world.get(xBlock, yBlock) != TerrainType.WALL) {
-                ppos.setX(newX);
-                ppos.setY(newY);
-            } else {
-                System.out.println("Cannot move to " + newX + ", " + newY);
-                System.out.println("      Checking the terrain at " + xBlock + ", " + yBlock);
+                ClientShotAttempt csa = processUpdatesFromClient();
+
+                if (handle == EntityStore.NO_HANDLE) {
+                    // Handed off to another region, or gone and already let go of by leave()
+                    return;
+                }
+
+                // One frame a tick keeps the client's movement in step with ours; if it has got ahead, catch up
+                int frames = Math.max(1, inputs.size() - INPUT_BACKLOG);
+                boolean applied = false;
+                appliedCount = 0;
+                for (int ii = 0; ii < frames && inputs.next(); ii++) {
+                    buttons = inputs.getButtons();
+                    move(buttons);
+                    if ((buttons & ClientInput.FIRE) != 0) {
+                        shoot(new Point(inputs.getAimX(), inputs.getAimY()));
+                    }
+                    recordFrame(buttons, inputs.getAimX(), inputs.getAimY());
+                    applied = true;
+                }
+                if (!applied) {
+                    // Keep walking until the late frame turns up, but don't fire twice for the same click
+                    move(buttons);
+                    recordFrame(buttons & ClientInput.MOVEMENT, 0, 0);
+                }
+                if (csa != null) {
+                    shoot(csa.getAimPt());
+                }
+                if (recorder != null) {
+                    appliedInputs.put(player.getPlayerId(), new ClientInput(tick,
+                            Arrays.copyOf(appliedButtons, appliedCount), Arrays.copyOf(appliedAimX, appliedCount),
+                            Arrays.copyOf(appliedAimY, appliedCount)));
+                }
+            }
+
+            private void recordFrame(int buttons, int aimX, int aimY) {
+                appliedButtons[appliedCount] = (byte)buttons;
+                appliedAimX[appliedCount] = aimX;
+                appliedAimY[appliedCount] = aimY;
+                appliedCount++;
+            }
+
+            /**
+             * For messages the client can't do without.  If the client is so far behind that there is no room, it is
+             * disconnected the next time its queue is drained.
+             */
+            void enqueue(ByteBuffer buf) {
+                if (!outbound.offer(buf)) {
+                    overflowed = true;
+                }
+                wakeWriter();
+            }
+
+            /**
+             * Snapshots are dropped when the queue is full.  That's safe because each one is a delta against a tick the
+             * client acknowledged, not against the snapshot before it.
+             */
+            void enqueueSnapshot(ByteBuffer buf, int shotCount) {
+                if (outbound.offer(buf)) {
+                    stats.messagesWritten(SnapshotDelta.class, 1);
+                    stats.messagesWritten(ShotFired.class, shotCount);
+                } else {
+                    metrics.droppedSnapshot();
+                }
+                wakeWriter();
+            }
+
+            private void wakeWriter() {
+                Thread thread = writer;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+
+            private void join(WireFormat format) {
+                joinLock.lock();
+                try {
+                    joinLocked(format);
+                } finally {
+                    joinLock.unlock();
+                }
+            }
+
+            private void joinLocked(WireFormat format) {
+                if (dac != null) {
+                    // The handshake timed out on the tick thread while the first bytes arrived, or vice versa
+                    return;
+                }
+                dac = format.newCodec(in);
+                pending.add(() -> spawn(format));
+            }
+
+            /**
+             * Gives the client its player and sends the welcome messages.  Runs on the room's tick.
+             */
+            private void spawn(WireFormat format) {
+                if (!clients.contains(this)) {
+                    // Gone before the tick got round to it
+                    return;
+                }
+
+                // TODO: Figure out where to spawn in new players
+
+                handle = entities.allocate(50, 50, 100, false);
+                player = entities.view(handle);
+                stats.setId(player.getPlayerId());
+                token = sessionTokens.nextLong();
+
+                sendPositionToPlayer(sc, player);
+                sendWorldToClient(sc, format);
+                send(new Resume(token));
+
+                // Only start receiving snapshots once the welcome messages are queued ahead of them
+                this.format = format;
+            }
+
+            /**
+             * Lets go of the player once the client has gone.  Runs on the room's tick.
+             */
+            private void leave() {
+                int freed = handle;
+                handle = EntityStore.NO_HANDLE;
+                entities.free(freed);
+            }
+
+            private void send(Object message) {
+                ByteBuffer buf = dac.encode(message, ByteBuffer.allocate(256));
+                buf.flip();
+                enqueue(buf);
+                stats.messagesWritten(message.getClass(), 1);
+            }
+
+            private void sendPositionToPlayer(SocketChannel sc, PlayerStats playerStats) {
+                send(playerStats);
+            }
+
+            private void sendWorldToClient(SocketChannel sc, WireFormat format) {
+                enqueue(getWorldMessage(format));
+                if (format == WireFormat.BINARY) {
+                    int chunks = (world.getEncoded().length + WorldChunk.CHUNK_SIZE - 1) / WorldChunk.CHUNK_SIZE;
+                    stats.messagesWritten(WorldChunk.class, chunks);
+                } else {
+                    stats.messagesWritten(GameWorld.class, 1);
+                }
+            }
+
+            /**
+             * Runs on whichever thread read the bytes.  Timing packets are answered immediately so the measured round
+             * trip doesn't include waiting for the next tick, and acks just move the delta baseline; everything else is
+             * queued for the room's tick.
+             */
+            private void decodeUpdatesFromClient() throws IOException {
+                while (dac.hasData()) {
+                    Object obj = dac.getData();
+                    if (obj != null) {
+                        stats.messageRead(obj);
+                    }
+                    if (obj instanceof TimingPacket) {
+                        TimingPacket tp = (TimingPacket)obj;
+                        if (tp.getReturnTime() != 0) {
+                            // The client sending back a finished measurement
+                            latency.sample(tp);
+                            metrics.rttMillis.record(tp.getReturnTime() - tp.getInitiatedTime());
+                        } else {
+                            tp.recordResponseTime();
+                            send(tp);
+                        }
+                    } else if (obj instanceof SnapshotAck) {
+                        ackedTick = Math.max(ackedTick, ((SnapshotAck)obj).getTick());
+                    } else if (obj != null) {
+                        inbound.add(obj);
+                    }
+                }
             }
 
-            if (shotAttempt != null) {
+            private void move(int buttons) {
+                int dx = Movement.dx(buttons), dy = Movement.dy(buttons);
+                if (!Movement.move(world, player, dx, dy, PLAYER_SPEED / TICK_RATE)) {
+                    metrics.blockedMove();
+                }
+            }
+
+            private void shoot(Point endPt) {
+                PlayerStats ppos = player;
                 long now = System.currentTimeMillis();
                 if (now - lastShotTime > shotInterval) {
-                    Point endPt = shotAttempt.getAimPt();
-
                     // Extend shot past aim point
                     double shotAngle = Math.atan2(endPt.getY() - ppos.getY(), endPt.getX() - ppos.getX());
                     endPt.x += 500 * Math.cos(shotAngle);
@@ -235,170 +1147,244 @@ public class DemoServer {
                     double x2 = endPt.getX();
                     double y2 = endPt.getY();
 
-                    for (Point obs : obstacles) {
-                        double[] intPt = checkIntersectionWithBlock(obs.x, obs.y, x1, y1, x2, y2);
-                        if (intPt != null) {
-                            if (endPt.distance(intPt[0], intPt[1]) > .5) {
-                                endPt.setLocation(intPt[0], intPt[1]);
-//                                        checkIntersectionWithBlock(ii, jj, x1, y1, x2, y2);
-                                x2 = endPt.getX();
-                                y2 = endPt.getY();
-                            }
+                    double hit = raycaster.cast(x1, y1, x2, y2);
+
+                    long viewTick = LagCompensator.viewTick(tick, latency.getRtt(), TICK_RATE);
+                    PlayerStats victim = lagCompensator.resolve(handle, x1, y1, x2, y2, viewTick, tick, hit);
+                    if (victim != null) {
+                        hit = lagCompensator.getHitFraction();
+                        if (region == null || !region.hit(victim, SHOT_DAMAGE)) {
+                            damage(victim.getHandle());
                         }
                     }
 
-                    // TODO: Check for shots hitting other players
-                    synchronized (gameState) {
-
+                    if (hit < Raycaster.NO_HIT) {
+                        endPt.setLocation(x1 + (x2 - x1) * hit, y1 + (y2 - y1) * hit);
                     }
 
                     ShotFired sf = new ShotFired(new Point((int) ppos.getX(), (int) ppos.getY()), endPt);
 
-                    synchronized (shots) {
-                        shots.add(sf);
-                    }
+                    shots.add(sf);
 
-                    synchronized (shotsToTransmit) {
-                        for (String playerId : gameState.keySet()) {
-                            List<ShotFired> tt = shotsToTransmit.get(playerId);
-                            if (tt == null) {
-                                tt = new ArrayList<>();
-                                shotsToTransmit.put(playerId, tt);
-                            }
-                            tt.add(sf);
-                        }
+                    // Goes out to everyone in the next snapshot
+                    shotsSinceSnapshot.add(sf);
+                    if (recorder != null) {
+                        firedThisTick.add(sf);
                     }
 
                     lastShotTime = now;
                 }
             }
-        }
 
-        private ClientShotAttempt processUpdatesFromClient(DataAccumulator dac, boolean[] keyDown) throws IOException {
-            ClientShotAttempt ret = null;
-            while (dac.hasData()) {
-                Object obj = dac.getData();
-                if (obj instanceof PlayerStats) {
+            /**
+             * Tells the client where its player has gone and lets go of it here.  The client disconnects once it has
+             * the message.
+             */
+            void redirect(Redirect redirect) {
+                send(redirect);
+                int freed = handle;
+                handle = EntityStore.NO_HANDLE;
+                entities.free(freed);
+            }
 
-                    PlayerStats pp = (PlayerStats)obj;
-                    playerId = pp.getPlayerId();
+            /**
+             * Takes over a player restored from a checkpoint or handed to this region, in place of the one made for the
+             * client when it connected.
+             */
+            private void resume(Resume resume) {
+                if (handle == EntityStore.NO_HANDLE) {
+                    return;
+                }
+                Handoff handoff = restored.remove(resume.getToken());
+                if (handoff == null && region != null) {
+                    handoff = region.claim(resume.getToken());
+                }
+                if (handoff == null) {
+                    System.out.println("No player waiting for token " + resume.getToken());
+                    return;
+                }
+                player.setX(handoff.getX());
+                player.setY(handoff.getY());
+                player.setHealth(handoff.getHealth());
+            }
 
-                    synchronized (gameState) {
-                        gameState.put(playerId, pp);
+            /**
+             * Queues new input frames.  Older clients that send key events and shot attempts are still understood;
+             * their keys change the held buttons directly.
+             */
+            private ClientShotAttempt processUpdatesFromClient() {
+                ClientShotAttempt ret = null;
+                Object obj;
+                while ((obj = inbound.poll()) != null) {
+                    if (obj instanceof ClientInput) {
+                        inputs.add((ClientInput)obj);
+                    } else if (obj instanceof ClientKeyEvent) {
+                        ClientKeyEvent cke = (ClientKeyEvent)obj;
+                        int button = ClientInput.button(cke.getKeyCode());
+                        buttons = cke.isDown() ? buttons | button : buttons & ~button;
+                    } else if (obj instanceof Resume) {
+                        resume((Resume)obj);
+                    } else if (obj instanceof ClientShotAttempt) {
+                        ret = (ClientShotAttempt)obj;
                     }
-                } else if (obj instanceof ClientKeyEvent) {
-                    ClientKeyEvent cke = (ClientKeyEvent)obj;
-                    keyDown[cke.getKeyCode()] = cke.isDown();
-                } else if (obj instanceof ClientShotAttempt) {
-                    ret = (ClientShotAttempt)obj;
-                } else if (obj instanceof TimingPacket) {
-                    TimingPacket tp = (TimingPacket)obj;
-                    tp.recordResponseTime();
-                    sc.write(ByteBuffer.wrap((tp.toString() + DataAccumulator.DELIMITER).getBytes()));
                 }
+                return ret;
             }
-            return ret;
+        }
+    }
+
+    /**
+     * Saves the state the rooms last put aside to the checkpoint file every CHECKPOINT_INTERVAL.
+     */
+    private class CheckpointThread extends Thread {
+        public CheckpointThread() {
+            super("checkpoint");
+            setDaemon(true);
         }
 
-        private void sendStateToClient(SocketChannel sc) throws IOException {
-            StringBuilder bld = new StringBuilder();
-            synchronized (gameState) {
-                for (PlayerStats pp : gameState.values()) {
-                    bld.append(pp.toString()).append(DataAccumulator.DELIMITER);
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(CHECKPOINT_INTERVAL);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (System.currentTimeMillis() > restoredUntil) {
+                    restored.clear();
                 }
-            }
 
-            synchronized (shotsToTransmit) {
-                List<ShotFired> toTransmit = shotsToTransmit.get(playerId);
-                if (toTransmit != null) {
-                    for (ShotFired s : toTransmit) {
-                        bld.append(s.toString()).append(DataAccumulator.DELIMITER);
-                    }
-                    toTransmit.clear();
+                List<Checkpoint.RoomState> states = matchmaker.checkpointStates();
+                if (states.isEmpty()) {
+                    continue;
+                }
+                if (!restored.isEmpty()) {
+                    // Restored players nobody has resumed yet are still waiting; keep them in the first room
+                    Checkpoint.RoomState first = states.get(0);
+                    List<Handoff> players = new ArrayList<>(first.getPlayers());
+                    players.addAll(restored.values());
+                    states.set(0, new Checkpoint.RoomState(first.getBots(), first.getShots(), players));
+                }
+                try {
+                    new Checkpoint(world, states).save(checkpointFile);
+                } catch (IOException ex) {
+                    System.out.println("Couldn't save checkpoint: " + ex.getMessage());
                 }
             }
-
-            sc.write(ByteBuffer.wrap(bld.toString().getBytes()));
         }
     }
 
-    private double[] checkIntersectionWithBlock(int blockX, int blockY, double x1, double y1, double x2, double y2) {
+    /**
+     * Drives one ClientHandler from a dedicated thread, polling the channel every few milliseconds.
+     */
+    private class HandlerThread extends Thread {
+        SocketChannel sc;
 
-        double[] top = getIntersection(x1, y1, x2, y2, blockX*CELL_SIZE, blockY*CELL_SIZE, CELL_SIZE + blockX*CELL_SIZE, blockY*CELL_SIZE);
-        double[] bot = getIntersection(x1, y1, x2, y2, blockX*CELL_SIZE, CELL_SIZE + blockY* CELL_SIZE, CELL_SIZE + blockX*CELL_SIZE, CELL_SIZE + blockY*CELL_SIZE);
-        double[] left = getIntersection(x1, y1, x2, y2, blockX*CELL_SIZE, blockY*CELL_SIZE, blockX*CELL_SIZE, CELL_SIZE + blockY*CELL_SIZE);
-        double[] right = getIntersection(x1, y1, x2, y2, CELL_SIZE + blockX*CELL_SIZE, blockY*CELL_SIZE, CELL_SIZE + blockX*CELL_SIZE, CELL_SIZE + blockY*CELL_SIZE);
+        public HandlerThread(SocketChannel sc) {
+            this.sc = sc;
+        }
 
-        double[] ret = top;
+        public void run() {
+            ClientSession handler = newClient(sc);
 
-        if (bot != null && (ret == null || dist(x1, y1, ret[0], ret[1]) > dist(x1, y1, bot[0], bot[1]))) {
-            ret = bot;
-        }
-        if (left != null && (ret == null || dist(x1, y1, ret[0], ret[1]) > dist(x1, y1, left[0], left[1]))) {
-            ret = left;
-        }
-        if (right != null && (ret == null || dist(x1, y1, ret[0], ret[1]) > dist(x1, y1, right[0], right[1]))) {
-            ret = right;
-        }
+            try {
+                sc.configureBlocking(false);
 
-        return ret;
-    }
+                while (true) {
+                    long start = System.nanoTime();
+                    readUpdatesFromClient(handler);
 
-    private double dist(double x1, double y1, double x2, double y2) {
-        double dx = x2-x1;
-        double dy = y2-y1;
-        return Math.sqrt(dx*dx + dy*dy);
-    }
+                    while (!handler.writePending()) {
+                        Thread.sleep(1);
+                    }
+                    metrics.loopMicros.record((System.nanoTime() - start) / 1000);
 
-    private class GameManagerThread extends Thread {
-        public void run() {
-            while (true) {
+                    Thread.sleep(5);
+                }
+            } catch (Exception ex) {
+                if (ex.getMessage() != null && ex.getMessage().startsWith("Connection reset")) {
+                    System.out.println("Client disconnected");
+                } else {
+                    ex.printStackTrace();
+                }
+            } finally {
+                // Whatever ended the loop, e.g. an overflowed queue, the client has to see the connection go
                 try {
-                    Thread.sleep(500);
-
-                    synchronized (shots) {
-                        Iterator<ShotFired> iter = shots.iterator();
-                        while (iter.hasNext()) {
-                            ShotFired sf = iter.next();
-                            if (sf.expired()) {
-                                iter.remove();
-                            }
-                        }
-                    }
-                } catch (Exception ex) {
+                    sc.close();
+                } catch (IOException ex) {
                     ex.printStackTrace();
                 }
             }
+
+            handler.disconnected();
+        }
+
+        private void readUpdatesFromClient(ClientSession handler) throws IOException {
+            if (handler.readFrom(sc) < 0) {
+                throw new IOException("Connection reset by client");
+            }
         }
     }
 
+    /**
+     * Drives one ClientHandler with blocking I/O: a reader thread that blocks in read() and a writer thread that parks
+     * until something is queued.  Both are virtual threads where the JVM has them, so an idle client costs a couple of
+     * parked continuations rather than two OS threads, and nothing waits on a polling interval.
+     */
+    private class BlockingConnection {
+        SocketChannel sc;
+        Room.ClientHandler handler;
+        AtomicBoolean closed = new AtomicBoolean();
 
-    public double[] getIntersection(double x1, double y1, double x2, double y2, double x3, double y3, double x4, double y4) {
-        // parallel check
-        if ((x1-x2) * (y3-y4) - (y1-y2) * (x3-x4) == 0) {
-            return null;
+        public BlockingConnection(SocketChannel sc) {
+            this.sc = sc;
         }
 
-        double x = (((x1*y2 - y1*x2)*(x3 - x4)) - (x1 - x2)*(x3*y4 - y3*x4)) /
-                ((x1 - x2)*(y3 - y4) - (y1 - y2)*(x3 - x4));
-        double y = (((x1*y2 - y1*x2)*(y3 - y4)) - (y1 - y2)*(x3*y4 - y3*x4)) /
-                ((x1 - x2)*(y3 - y4) - (y1 - y2)*(x3 - x4));
+        public void start() {
+            handler = newClient(sc);
+            Thread writer = VirtualThreads.newThread("client-writer", this::writeLoop);
+            handler.writer = writer;
+            writer.start();
+            VirtualThreads.newThread("client-reader", this::readLoop).start();
+        }
 
-        if (x >= Math.min(x1, x2) && x <= Math.max(x1, x2) && y >= Math.min(y1, y2) && y <= Math.max(y1, y2) &&
-            x >= Math.min(x3, x4) && x <= Math.max(x3, x4) && y >= Math.min(y3, y4) && y <= Math.max(y3, y4))
-        {
-            return new double[]{x, y};
-        } else {
-            return null;
+        private void readLoop() {
+            try {
+                while (handler.readFrom(sc) >= 0) {
+                    // Each read blocks until the client sends something
+                }
+                System.out.println("Client disconnected");
+            } catch (IOException ex) {
+                System.out.println("Client disconnected");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+            close();
+        }
+
+        private void writeLoop() {
+            try {
+                while (sc.isOpen()) {
+                    // Blocking writes always finish, so this only returns once the queue is empty
+                    handler.writePending();
+                    LockSupport.park(this);
+                }
+            } catch (IOException ex) {
+                // Closed under us or overflowed; the reader reports the disconnect
+            }
+            close();
         }
-    }
 
-    private String generateRandomPlayerId() {
-        String ret = "";
-        for (int ii=0; ii<10; ii++) {
-            ret += (char)((int)(Math.random()*25) + 'a');
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                sc.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            handler.disconnected();
+            LockSupport.unpark(handler.writer);
         }
-        return ret;
     }
 }
-
@@ -0,0 +1,96 @@
+package com.bb.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts values into fixed buckets chosen up front.  Recording is a bucket search plus two LongAdder increments, so
+ * it is cheap enough to leave on and safe from any number of threads.  Buckets are upper bounds, as Prometheus
+ * expects; anything above the last bound only shows up in the +Inf bucket.
+ */
+public class Histogram {
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram(long[] bounds) {
+        this.bounds = bounds;
+        buckets = new LongAdder[bounds.length + 1];
+        for (int ii = 0; ii < buckets.length; ii++) {
+            buckets[ii] = new LongAdder();
+        }
+    }
+
+    /**
+     * Bounds of start, start * 2, start * 4 and so on, count of them.
+     */
+    public static Histogram exponential(long start, int count) {
+        long[] bounds = new long[count];
+        for (int ii = 0; ii < count; ii++) {
+            bounds[ii] = start << ii;
+        }
+        return new Histogram(bounds);
+    }
+
+    public void record(long value) {
+        int lo = 0, hi = bounds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (value <= bounds[mid]) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        buckets[lo].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Upper bound of the bucket holding the given quantile (0 to 1), or Long.MAX_VALUE if it's past the last bound.
+     */
+    public long getQuantile(double quantile) {
+        long total = 0;
+        long[] counts = new long[buckets.length];
+        for (int ii = 0; ii < buckets.length; ii++) {
+            counts[ii] = buckets[ii].sum();
+            total += counts[ii];
+        }
+        long rank = (long)Math.ceil(total * quantile);
+        long seen = 0;
+        for (int ii = 0; ii < bounds.length; ii++) {
+            seen += counts[ii];
+            if (seen >= rank) {
+                return bounds[ii];
+            }
+        }
+        return total == 0 ? 0 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Appends this histogram in Prometheus text format.  labels is either empty or a comma terminated list such as
+     * type="tick",
+     */
+    public void writePrometheus(StringBuilder out, String name, String labels) {
+        long cumulative = 0;
+        for (int ii = 0; ii < bounds.length; ii++) {
+            cumulative += buckets[ii].sum();
+            out.append(name).append("_bucket{").append(labels).append("le=\"").append(bounds[ii]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += buckets[bounds.length].sum();
+        out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(plain).append(' ').append(getSum()).append('\n');
+        out.append(name).append("_count").append(plain).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,89 @@
+package com.bb.server;
+
+import com.bb.common.data.ClientInput;
+
+/**
+ * The input frames a client has sent that haven't been applied yet, in sequence order.  Every ClientInput repeats
+ * the last few frames, so anything already queued or applied is skipped.  If the client gets too far ahead the
+ * oldest frames are dropped.  Only used from its room's tick.
+ */
+public class InputQueue {
+    private byte[] buttons;
+    private int[] aimX;
+    private int[] aimY;
+    private int head;
+    private int size;
+    // Sequence number of the newest frame ever queued
+    private long lastSequence = -1;
+
+    // The frame taken by the last call to next()
+    private int currentButtons;
+    private int currentAimX;
+    private int currentAimY;
+
+    public InputQueue(int capacity) {
+        this.buttons = new byte[capacity];
+        this.aimX = new int[capacity];
+        this.aimY = new int[capacity];
+    }
+
+    /**
+     * Queues the frames in input newer than any seen so far.  Returns how many were new.
+     */
+    public int add(ClientInput input) {
+        int added = 0;
+        for (int ii = 0; ii < input.getFrameCount(); ii++) {
+            long sequence = input.getFirstSequence() + ii;
+            if (sequence <= lastSequence) {
+                continue;
+            }
+            if (size == buttons.length) {
+                head = (head + 1) % buttons.length;
+                size--;
+            }
+            int slot = (head + size) % buttons.length;
+            buttons[slot] = (byte) input.getButtons(ii);
+            aimX[slot] = input.getAimX(ii);
+            aimY[slot] = input.getAimY(ii);
+            size++;
+            added++;
+            lastSequence = sequence;
+        }
+        return added;
+    }
+
+    /**
+     * Takes the oldest queued frame, or returns false if there isn't one.
+     */
+    public boolean next() {
+        if (size == 0) {
+            return false;
+        }
+        currentButtons = buttons[head] & 0xFF;
+        currentAimX = aimX[head];
+        currentAimY = aimY[head];
+        head = (head + 1) % buttons.length;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public int getButtons() {
+        return currentButtons;
+    }
+
+    public int getAimX() {
+        return currentAimX;
+    }
+
+    public int getAimY() {
+        return currentAimY;
+    }
+}
@@ -0,0 +1,123 @@
+package com.bb.server;
+
+import com.bb.common.data.EntityStore;
+import com.bb.common.data.PlayerStats;
+import com.bb.common.data.SnapshotDelta;
+
+import java.util.*;
+
+/**
+ * Resolves shots against players as the shooter saw them.  Every tick the position of each player is recorded in
+ * a PositionHistory; a shot is then tested against the players near its path, moved back to where they were at the
+ * tick the shooter was looking at.  Only called from its room's tick, so it needs no locking.
+ */
+public class LagCompensator {
+    // Players are drawn as 10 pixel squares centred on their position
+    public static final double HIT_RADIUS = 5;
+
+    private SpatialGrid grid;
+    private double maxSpeedPerTick;
+    // Indexed by EntityStore handle; the generation says which occupant of the slot the history belongs to
+    private PositionHistory[] histories;
+    private int[] generations;
+    private List<PlayerStats> candidates;
+    private double hitFraction;
+
+    /**
+     * @param grid kept up to date with current positions by the caller
+     * @param maxSpeedPerTick furthest any player can move in one tick, used to widen the candidate search
+     */
+    public LagCompensator(SpatialGrid grid, double maxSpeedPerTick) {
+        this.grid = grid;
+        this.maxSpeedPerTick = maxSpeedPerTick;
+        histories = new PositionHistory[0];
+        generations = new int[0];
+        candidates = new ArrayList<>();
+    }
+
+    /**
+     * The tick a client was looking at when a shot it fired arrives at currentTick.  The snapshot it saw took half a
+     * round trip to reach it and was drawn SnapshotDelta.INTERPOLATION_DELAY late, and the shot took the other half
+     * of the round trip to get back.
+     */
+    public static long viewTick(long currentTick, double rttMillis, int tickRate) {
+        return currentTick - Math.round((rttMillis + SnapshotDelta.INTERPOLATION_DELAY) * tickRate / 1000.0);
+    }
+
+    /**
+     * Records where every player is at the end of tick and forgets players that are gone.
+     */
+    public void record(long tick, EntityStore players) {
+        int highWater = players.highWater();
+        if (histories.length < highWater) {
+            histories = Arrays.copyOf(histories, Math.max(highWater, histories.length * 2));
+            generations = Arrays.copyOf(generations, histories.length);
+        }
+        for (int hh = 0; hh < highWater; hh++) {
+            if (!players.isAlive(hh)) {
+                histories[hh] = null;
+                continue;
+            }
+            if (histories[hh] == null || generations[hh] != players.getGeneration(hh)) {
+                histories[hh] = new PositionHistory();
+                generations[hh] = players.getGeneration(hh);
+            }
+            histories[hh].record(tick, players.getX(hh), players.getY(hh));
+        }
+    }
+
+    /**
+     * Finds the first player other than the shooter (an EntityStore handle) that the segment from (x1, y1) to (x2, y2) passes through, with
+     * everyone rewound to viewTick.  Returns null if nobody is hit before the fraction maxT of the segment (where
+     * the shot hit a wall).  On a hit, getHitFraction() says how far along the segment it happened.
+     */
+    public PlayerStats resolve(int shooter, double x1, double y1, double x2, double y2, long viewTick, long currentTick, double maxT) {
+        long ticksBack = Math.max(0, Math.min(PositionHistory.CAPACITY - 1, currentTick - viewTick));
+        double margin = HIT_RADIUS + maxSpeedPerTick * (ticksBack + 1);
+
+        candidates.clear();
+        grid.queryBox(Math.min(x1, x2) - margin, Math.min(y1, y2) - margin,
+                Math.max(x1, x2) + margin, Math.max(y1, y2) + margin, candidates);
+
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSq = dx * dx + dy * dy;
+        if (lengthSq == 0) {
+            return null;
+        }
+
+        PlayerStats ret = null;
+        double best = maxT;
+        for (PlayerStats pp : candidates) {
+            int handle = pp.getHandle();
+            if (handle == shooter) {
+                continue;
+            }
+            PositionHistory history = (handle >= 0 && handle < histories.length) ? histories[handle] : null;
+            double px = history != null ? history.getX(currentTick - ticksBack) : pp.getX();
+            double py = history != null ? history.getY(currentTick - ticksBack) : pp.getY();
+
+            // Closest point on the segment to the player, then back off to where the segment enters its circle
+            double t = ((px - x1) * dx + (py - y1) * dy) / lengthSq;
+            t = Math.max(0, Math.min(1, t));
+            double cx = x1 + dx * t - px;
+            double cy = y1 + dy * t - py;
+            double distSq = cx * cx + cy * cy;
+            if (distSq > HIT_RADIUS * HIT_RADIUS) {
+                continue;
+            }
+            double entry = Math.max(0, t - Math.sqrt((HIT_RADIUS * HIT_RADIUS - distSq) / lengthSq));
+            if (entry < best) {
+                best = entry;
+                ret = pp;
+            }
+        }
+
+        hitFraction = best;
+        return ret;
+    }
+
+    public double getHitFraction() {
+        return hitFraction;
+    }
+}
@@ -0,0 +1,228 @@
+package com.bb.server;
+
+import com.bb.common.data.*;
+import com.bb.common.net.BinaryCodec;
+import com.bb.common.net.ByteBuffers;
+import com.bb.common.net.Codec;
+import com.bb.common.net.MpscRing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.bb.server.MatchRecording.*;
+
+/**
+ * Writes one room's match to a directory in the format MatchRecording reads.  The tick hands each tick's state,
+ * shots and inputs to record(), which only queues them; a thread of the recorder's own works out the deltas and
+ * appends them to memory-mapped segment files.  If that thread falls behind, whole ticks are dropped rather than
+ * holding up the tick; every delta is against the last tick actually written, so the recording stays readable.
+ */
+public class MatchRecorder {
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    // Ticks waiting for the writer; about a second's worth
+    public static final int QUEUE_CAPACITY = 64;
+
+    private File dir;
+    private GameWorld world;
+    private MpscRing<TickRecord> queue = new MpscRing<>(QUEUE_CAPACITY);
+    private Writer writer;
+    private volatile boolean closing;
+    private volatile long dropped;
+
+    private static class TickRecord {
+        long tick;
+        Map<String, PlayerStats> state;
+        List<ShotFired> shots;
+        Map<String, ClientInput> inputs;
+    }
+
+    public MatchRecorder(File dir, GameWorld world) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+        this.dir = dir;
+        this.world = world;
+        writer = new Writer();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Queues a tick for writing.  The recorder keeps the maps and list it is given, so the caller mustn't change
+     * them afterwards.
+     */
+    public void record(long tick, Map<String, PlayerStats> state, List<ShotFired> shots,
+            Map<String, ClientInput> inputs) {
+        TickRecord tr = new TickRecord();
+        tr.tick = tick;
+        tr.state = state;
+        tr.shots = shots;
+        tr.inputs = inputs;
+        if (!queue.offer(tr)) {
+            dropped++;
+        }
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Ticks dropped because the writer was behind.  Only the tick thread changes it.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Writes out whatever is queued and closes the files, on the writer thread.
+     */
+    public void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+    }
+
+    private class Writer extends Thread {
+        private Codec encoder = new BinaryCodec();
+        private ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+        private int segment = -1;
+        private MappedByteBuffer current;
+        private FileChannel index;
+        // The last tick written, which the next delta is against
+        private long lastTick = SnapshotDelta.FULL;
+        private Map<String, PlayerStats> lastState;
+        private long nextKeyframe;
+
+        public Writer() {
+            super("recorder-" + dir.getName());
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                index = new RandomAccessFile(new File(dir, INDEX_FILE), "rw").getChannel();
+                index.truncate(0);
+                nextSegment();
+                writeWorld();
+
+                while (true) {
+                    TickRecord tr = queue.poll();
+                    if (tr != null) {
+                        write(tr);
+                    } else if (closing) {
+                        break;
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                current.force();
+                index.close();
+                System.out.println("Recorded to " + dir + (dropped > 0 ? " (" + dropped + " ticks dropped)" : ""));
+            } catch (IOException ex) {
+                System.out.println("Recording to " + dir + " failed: " + ex.getMessage());
+            }
+        }
+
+        private void writeWorld() throws IOException {
+            scratch.clear();
+            startRecord(WORLD, 0);
+            byte[] encoded = world.getEncoded();
+            scratch = ByteBuffers.ensureRemaining(scratch, 8 + encoded.length);
+            scratch.putInt(world.getSize());
+            scratch.putInt(encoded.length);
+            scratch.put(encoded);
+            append();
+        }
+
+        private void write(TickRecord tr) throws IOException {
+            boolean keyframe = lastState == null || tr.tick >= nextKeyframe;
+            Map<String, PlayerStats> base = keyframe ? null : lastState;
+            SnapshotDelta delta = SnapshotDelta.between(lastTick, base, tr.tick, tr.state);
+
+            scratch.clear();
+            startRecord(keyframe ? KEYFRAME : DELTA, tr.tick);
+            int framesAt = scratch.position();
+            scratch.putInt(0);
+            scratch = encoder.encode(delta, scratch);
+            for (ShotFired sf : tr.shots) {
+                scratch = encoder.encode(sf, scratch);
+            }
+            scratch.putInt(framesAt, scratch.position() - framesAt - 4);
+
+            int inputsLength = 4;
+            for (Map.Entry<String, ClientInput> entry : tr.inputs.entrySet()) {
+                inputsLength += 2 + entry.getKey().length() + entry.getValue().encodedLength();
+            }
+            scratch = ByteBuffers.ensureRemaining(scratch, inputsLength);
+            scratch.putInt(tr.inputs.size());
+            for (Map.Entry<String, ClientInput> entry : tr.inputs.entrySet()) {
+                byte[] id = entry.getKey().getBytes(StandardCharsets.US_ASCII);
+                scratch.putShort((short)id.length);
+                scratch.put(id);
+                entry.getValue().write(scratch);
+            }
+
+            long position = append();
+            if (position < 0) {
+                return;
+            }
+            if (keyframe) {
+                ByteBuffer entry = ByteBuffer.allocate(16);
+                entry.putLong(tr.tick).putLong(position).flip();
+                while (entry.hasRemaining()) {
+                    index.write(entry);
+                }
+                nextKeyframe = (tr.tick / KEYFRAME_INTERVAL + 1) * KEYFRAME_INTERVAL;
+            }
+            lastTick = tr.tick;
+            lastState = tr.state;
+        }
+
+        private void startRecord(byte kind, long tick) {
+            scratch.putInt(0);
+            scratch.put(kind);
+            scratch.putLong(tick);
+        }
+
+        /**
+         * Fills in the length of the record in scratch and copies it to the end of the current segment, or the start
+         * of a new one if it doesn't fit.  Returns where it went, or -1 if it is too big for any segment.
+         */
+        private long append() throws IOException {
+            scratch.putInt(0, scratch.position() - 4);
+            scratch.flip();
+            if (scratch.remaining() > SEGMENT_SIZE - 4) {
+                System.out.println("Tick too big to record: " + scratch.remaining() + " bytes");
+                return -1;
+            }
+            if (scratch.remaining() > current.remaining()) {
+                nextSegment();
+            }
+            long ret = position(segment, current.position());
+            current.put(scratch);
+            return ret;
+        }
+
+        private void nextSegment() throws IOException {
+            if (current != null) {
+                current.force();
+            }
+            segment++;
+            try (RandomAccessFile raf = new RandomAccessFile(new File(dir, segmentName(segment)), "rw")) {
+                current = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+            current.putInt(MAGIC);
+        }
+    }
+}
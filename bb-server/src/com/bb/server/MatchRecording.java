@@ -0,0 +1,255 @@
+package com.bb.server;
+
+import com.bb.common.data.*;
+import com.bb.common.net.BinaryCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.List;
+
+/**
+ * A match recorded by MatchRecorder, opened for reading.
+ *
+ * A recording is a directory of segment files and an index.  Each segment is a fixed size file holding a magic
+ * number and then records, one after another, until one doesn't fit; the rest of the segment is left as zeros and
+ * the next record starts the next segment.  A record is a four byte length, a kind, the tick and a body:
+ *
+ *   WORLD     the GameWorld the match was played on, as its size and compressed encoding
+ *   KEYFRAME  everyone's state as a full SnapshotDelta, then the shots fired and inputs applied that tick
+ *   DELTA     the same, but with the SnapshotDelta against the previous record
+ *
+ * Shots and inputs come after the SnapshotDelta: the length of the BinaryCodec frames (the delta and one ShotFired
+ * per shot), then the number of inputs and each input as a player id and a ClientInput holding the frames that
+ * player's client had applied that tick.
+ *
+ * The index holds a tick and a position for every keyframe.  Keyframes are written every KEYFRAME_INTERVAL ticks,
+ * so seeking works out which index entry to use from the tick alone, then reads at most one keyframe and
+ * KEYFRAME_INTERVAL deltas.
+ */
+public class MatchRecording {
+    public static final int MAGIC = 0x42425231;
+    public static final byte WORLD = 1;
+    public static final byte KEYFRAME = 2;
+    public static final byte DELTA = 3;
+    public static final int KEYFRAME_INTERVAL = 60;
+    public static final String INDEX_FILE = "index.bbi";
+
+    private File dir;
+    private GameWorld world;
+    private LongBuffer index;
+    // Keyframes the index holds
+    private int keyframes;
+
+    /**
+     * One tick of the recording, with the state rebuilt from the keyframe before it.
+     */
+    public static class Tick {
+        private long tick;
+        private Map<String, PlayerStats> state;
+        private List<ShotFired> shots;
+        private Map<String, ClientInput> inputs;
+
+        Tick(long tick, Map<String, PlayerStats> state, List<ShotFired> shots, Map<String, ClientInput> inputs) {
+            this.tick = tick;
+            this.state = state;
+            this.shots = shots;
+            this.inputs = inputs;
+        }
+
+        public long getTick() {
+            return tick;
+        }
+
+        public Map<String, PlayerStats> getState() {
+            return state;
+        }
+
+        public List<ShotFired> getShots() {
+            return shots;
+        }
+
+        /**
+         * Keyed by player id.  Each input holds the frames applied that tick, numbered from the tick.
+         */
+        public Map<String, ClientInput> getInputs() {
+            return inputs;
+        }
+    }
+
+    public MatchRecording(File dir) throws IOException {
+        this.dir = dir;
+        File indexFile = new File(dir, INDEX_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            index = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).asLongBuffer();
+        }
+        keyframes = index.limit() / 2;
+
+        Cursor cursor = new Cursor(0, 0);
+        ByteBuffer record = cursor.nextRecord();
+        if (record == null || record.get() != WORLD) {
+            throw new IOException("No world at the start of " + dir);
+        }
+        record.getLong();
+        int size = record.getInt();
+        byte[] encoded = new byte[record.getInt()];
+        record.get(encoded);
+        world = GameWorld.decode(size, encoded, encoded.length);
+    }
+
+    public static String segmentName(int segment) {
+        return String.format("segment-%05d.bbr", segment);
+    }
+
+    public static long position(int segment, int offset) {
+        return ((long)segment << 32) | offset;
+    }
+
+    public GameWorld getWorld() {
+        return world;
+    }
+
+    public long getFirstTick() {
+        return keyframes == 0 ? 0 : keyTick(0);
+    }
+
+    /**
+     * Returns a cursor whose first tick is the first recorded one at or after the given tick.
+     */
+    public Cursor seek(long tick) {
+        if (keyframes == 0) {
+            return new Cursor(0, 0);
+        }
+        // Keyframes are nearly always exactly KEYFRAME_INTERVAL apart, so this is the right entry or next to it
+        int kk = (int)Math.max(0, Math.min(keyframes - 1, (tick - keyTick(0)) / KEYFRAME_INTERVAL));
+        while (kk > 0 && keyTick(kk) > tick) {
+            kk--;
+        }
+        while (kk + 1 < keyframes && keyTick(kk + 1) <= tick) {
+            kk++;
+        }
+        long position = index.get(kk * 2 + 1);
+        Cursor ret = new Cursor((int)(position >>> 32), (int)position);
+        ret.skipUntil = tick;
+        return ret;
+    }
+
+    private long keyTick(int keyframe) {
+        return index.get(keyframe * 2);
+    }
+
+    /**
+     * Decodes length bytes of BinaryCodec frames from buf.
+     */
+    private static List<Object> decode(ByteBuffer buf, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        BinaryCodec codec = new BinaryCodec();
+        codec.accumulate(bytes, length);
+        List<Object> ret = new ArrayList<>();
+        while (codec.hasData()) {
+            ret.add(codec.getData());
+        }
+        return ret;
+    }
+
+    /**
+     * Reads ticks in order from a keyframe on.
+     */
+    public class Cursor {
+        private int segment;
+        private ByteBuffer current;
+        private Map<String, PlayerStats> state;
+        private long stateTick = SnapshotDelta.FULL;
+        private long skipUntil = Long.MIN_VALUE;
+
+        private Cursor(int segment, int offset) {
+            this.segment = segment;
+            current = map(segment);
+            if (current != null) {
+                current.position(Math.max(offset, 4));
+            }
+        }
+
+        /**
+         * The next tick, or null at the end of the recording.
+         */
+        public Tick next() throws IOException {
+            ByteBuffer record;
+            while ((record = nextRecord()) != null) {
+                byte kind = record.get();
+                long tick = record.getLong();
+                if (kind != KEYFRAME && kind != DELTA) {
+                    continue;
+                }
+                List<Object> frames = decode(record, record.getInt());
+                SnapshotDelta delta = (SnapshotDelta)frames.get(0);
+                if (!delta.isFull() && delta.getBaseTick() != stateTick) {
+                    // Only happens if we didn't start from a keyframe
+                    continue;
+                }
+                state = delta.applyTo(delta.isFull() ? null : state);
+                stateTick = tick;
+
+                if (tick < skipUntil) {
+                    continue;
+                }
+                List<ShotFired> shots = new ArrayList<>();
+                for (int ii = 1; ii < frames.size(); ii++) {
+                    shots.add((ShotFired)frames.get(ii));
+                }
+                Map<String, ClientInput> inputs = new HashMap<>();
+                int count = record.getInt();
+                for (int ii = 0; ii < count; ii++) {
+                    char[] id = new char[record.getShort()];
+                    for (int cc = 0; cc < id.length; cc++) {
+                        id[cc] = (char)record.get();
+                    }
+                    inputs.put(new String(id), ClientInput.read(record));
+                }
+                return new Tick(tick, state, shots, inputs);
+            }
+            return null;
+        }
+
+        /**
+         * The next record, positioned just after its length, or null at the end.
+         */
+        private ByteBuffer nextRecord() {
+            while (current != null) {
+                int length = current.remaining() >= 4 ? current.getInt(current.position()) : 0;
+                if (length > 0) {
+                    ByteBuffer ret = current.slice();
+                    ret.position(4);
+                    ret.limit(4 + length);
+                    current.position(current.position() + 4 + length);
+                    return ret;
+                }
+                current = map(++segment);
+            }
+            return null;
+        }
+
+        private ByteBuffer map(int segment) {
+            File file = new File(dir, segmentName(segment));
+            if (!file.exists()) {
+                return null;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                ByteBuffer ret = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (ret.getInt(0) != MAGIC) {
+                    return null;
+                }
+                ret.position(4);
+                return ret;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.bb.server;
+
+/**
+ * Where one player was over the last CAPACITY ticks, kept in a fixed ring so recording never allocates.
+ */
+public class PositionHistory {
+    public static final int CAPACITY = 64;
+
+    private long[] ticks;
+    private double[] xs;
+    private double[] ys;
+    private long latest;
+
+    public PositionHistory() {
+        ticks = new long[CAPACITY];
+        xs = new double[CAPACITY];
+        ys = new double[CAPACITY];
+        latest = -1;
+    }
+
+    public void record(long tick, double x, double y) {
+        int idx = (int)(tick % CAPACITY);
+        ticks[idx] = tick;
+        xs[idx] = x;
+        ys[idx] = y;
+        latest = Math.max(latest, tick);
+    }
+
+    public double getX(long tick) {
+        return xs[indexOf(tick)];
+    }
+
+    public double getY(long tick) {
+        return ys[indexOf(tick)];
+    }
+
+    /**
+     * Index of the newest entry at or before tick.  Ticks before the player joined, or too old to still be in the
+     * ring, fall back to the oldest position we have; ticks in the future fall back to the latest.
+     */
+    private int indexOf(long tick) {
+        long wanted = Math.min(tick, latest);
+        long oldest = Math.max(0, latest - CAPACITY + 1);
+        for (long tt = wanted; tt >= oldest; tt--) {
+            int idx = (int)(tt % CAPACITY);
+            if (ticks[idx] == tt) {
+                return idx;
+            }
+        }
+        for (long tt = oldest; tt <= latest; tt++) {
+            int idx = (int)(tt % CAPACITY);
+            if (ticks[idx] == tt) {
+                return idx;
+            }
+        }
+        return (int)(latest % CAPACITY);
+    }
+}
@@ -0,0 +1,66 @@
+package com.bb.server;
+
+import com.bb.common.data.GameWorld;
+import com.bb.common.data.TerrainType;
+
+import static com.bb.common.data.GameWorld.CELL_SIZE;
+
+/**
+ * Finds where a line segment first runs into a wall by walking the grid cells it passes through (Amanatides &
+ * Woo).  The cost grows with the length of the segment, not with the number of walls on the map, and nothing is
+ * allocated.  Stateless, so one instance can be shared by every thread.
+ */
+public class Raycaster {
+    public static final double NO_HIT = 1.0;
+
+    private GameWorld world;
+
+    public Raycaster(GameWorld world) {
+        this.world = world;
+    }
+
+    /**
+     * Returns how far along the segment from (x1, y1) to (x2, y2) the first wall is hit, as a fraction of its
+     * length, or NO_HIT if it reaches (x2, y2) unobstructed.  The cell the segment starts in is not checked, and
+     * parts of the segment outside the world never hit anything.
+     */
+    public double cast(double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+
+        int cellX = (int)Math.floor(x1 / CELL_SIZE);
+        int cellY = (int)Math.floor(y1 / CELL_SIZE);
+        int stepX = dx > 0 ? 1 : -1;
+        int stepY = dy > 0 ? 1 : -1;
+
+        // Fraction of the segment it takes to cross one cell, and to reach the next vertical/horizontal grid line
+        double tDeltaX = dx != 0 ? CELL_SIZE / Math.abs(dx) : Double.POSITIVE_INFINITY;
+        double tDeltaY = dy != 0 ? CELL_SIZE / Math.abs(dy) : Double.POSITIVE_INFINITY;
+        double tMaxX = dx > 0 ? ((cellX + 1) * CELL_SIZE - x1) / dx
+                : dx < 0 ? (cellX * CELL_SIZE - x1) / dx : Double.POSITIVE_INFINITY;
+        double tMaxY = dy > 0 ? ((cellY + 1) * CELL_SIZE - y1) / dy
+                : dy < 0 ? (cellY * CELL_SIZE - y1) / dy : Double.POSITIVE_INFINITY;
+
+        int size = world.getSize();
+        while (true) {
+            double t;
+            if (tMaxX < tMaxY) {
+                t = tMaxX;
+                tMaxX += tDeltaX;
+                cellX += stepX;
+            } else {
+                t = tMaxY;
+                tMaxY += tDeltaY;
+                cellY += stepY;
+            }
+
+            if (t > 1) {
+                return NO_HIT;
+            }
+            if (cellX >= 0 && cellX < size && cellY >= 0 && cellY < size &&
+                    world.get(cellX, cellY) == TerrainType.WALL) {
+                return t;
+            }
+        }
+    }
+}
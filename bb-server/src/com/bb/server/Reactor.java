@@ -0,0 +1,209 @@
+package com.bb.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Services many client connections from a small, fixed set of event loop threads.  Each loop owns a Selector and
+ * only wakes when one of its channels is readable or writable, or when flush() says one of its sessions has new
+ * output.  A flushed session is queued on the loop that owns it, so a loop only looks at the sessions that have
+ * something to send and the loops owning none of them aren't woken at all.
+ */
+public class Reactor {
+    private EventLoop[] loops;
+    private Function<SocketChannel, ClientSession> sessionFactory;
+    private int nextLoop;
+    private Histogram loopMicros;
+    private Map<ClientSession, Registration> registrations = new ConcurrentHashMap<>();
+
+    /**
+     * A session and the loop and key that own it.
+     */
+    private static class Registration {
+        EventLoop loop;
+        SelectionKey key;
+        ClientSession session;
+        // Set while the session is waiting in its loop's dirty queue, so it is only queued once
+        AtomicBoolean dirty = new AtomicBoolean();
+    }
+
+    public Reactor(int threads, Function<SocketChannel, ClientSession> sessionFactory) throws IOException {
+        this(threads, sessionFactory, null);
+    }
+
+    /**
+     * @param loopMicros if not null, records how long each pass of an event loop spends on its ready keys
+     */
+    public Reactor(int threads, Function<SocketChannel, ClientSession> sessionFactory, Histogram loopMicros) throws IOException {
+        this.sessionFactory = sessionFactory;
+        this.loopMicros = loopMicros;
+        loops = new EventLoop[threads];
+        for (int ii = 0; ii < threads; ii++) {
+            loops[ii] = new EventLoop(ii);
+        }
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Asks the event loop that owns the session to write out whatever it has queued, e.g. after a tick's snapshot
+     * went out.  Does nothing for a session that hasn't been registered yet or has already closed.
+     */
+    public void flush(ClientSession session) {
+        Registration reg = registrations.get(session);
+        if (reg != null && reg.dirty.compareAndSet(false, true)) {
+            reg.loop.dirty.add(reg);
+            if (reg.loop.wakeupRequested.compareAndSet(false, true)) {
+                reg.loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Hands a freshly accepted channel to one of the event loops, round robin.
+     */
+    public void register(SocketChannel sc) {
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        loop.register(sc);
+    }
+
+    private class EventLoop extends Thread {
+        private Selector selector;
+        private Queue<SocketChannel> pending;
+        private Queue<Registration> dirty;
+        // Set from the first flush() after the loop last looked at dirty until it looks again, so a tick's worth of
+        // flushes costs one wakeup
+        private AtomicBoolean wakeupRequested = new AtomicBoolean();
+
+        private EventLoop(int index) throws IOException {
+            super("reactor-" + index);
+            selector = Selector.open();
+            pending = new ConcurrentLinkedQueue<>();
+            dirty = new ConcurrentLinkedQueue<>();
+        }
+
+        private void register(SocketChannel sc) {
+            pending.add(sc);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    long start = System.nanoTime();
+
+                    registerPending();
+
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        handleKey(key);
+                    }
+
+                    wakeupRequested.set(false);
+                    flushSessions();
+
+                    if (loopMicros != null) {
+                        loopMicros.record((System.nanoTime() - start) / 1000);
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel sc;
+            while ((sc = pending.poll()) != null) {
+                try {
+                    sc.configureBlocking(false);
+                    Registration reg = new Registration();
+                    reg.loop = this;
+                    reg.session = sessionFactory.apply(sc);
+                    reg.key = sc.register(selector, SelectionKey.OP_READ, reg);
+                    registrations.put(reg.session, reg);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    closeQuietly(sc);
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            ClientSession session = ((Registration)key.attachment()).session;
+            try {
+                if (key.isReadable()) {
+                    SocketChannel sc = (SocketChannel)key.channel();
+                    int bytesRead;
+                    do {
+                        bytesRead = session.readFrom(sc);
+                    } while (bytesRead > 0);
+                    if (bytesRead < 0) {
+                        close(key);
+                        return;
+                    }
+                }
+                if (key.isValid() && key.isWritable() && session.writePending()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException | RuntimeException ex) {
+                close(key);
+            }
+        }
+
+        /**
+         * Writes out the sessions flush() has queued since the last pass.
+         */
+        private void flushSessions() {
+            Registration reg;
+            while ((reg = dirty.poll()) != null) {
+                // Cleared first, so output queued while we write gets the session queued again
+                reg.dirty.set(false);
+                if (!reg.key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (!reg.session.writePending()) {
+                        reg.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    close(reg.key);
+                }
+            }
+        }
+
+        private void close(SelectionKey key) {
+            System.out.println("Client disconnected");
+            Registration reg = (Registration)key.attachment();
+            key.cancel();
+            registrations.remove(reg.session);
+            reg.session.disconnected();
+            closeQuietly(key.channel());
+        }
+    }
+
+    private static void closeQuietly(java.nio.channels.Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Already going away
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.bb.server;
+
+import static com.bb.common.data.GameWorld.CELL_SIZE;
+
+/**
+ * Splits a square world into a grid of equal rectangular regions, each simulated by its own server process.  Regions
+ * are numbered across then down.  All the processes run on one host: region n takes clients on basePort + n and
+ * talks to the other regions on basePort + PEER_PORT_OFFSET + n.
+ */
+public class RegionLayout {
+    public static final int PEER_PORT_OFFSET = 100;
+
+    private int columns;
+    private int rows;
+    private double worldPixels;
+    private String host;
+    private int basePort;
+
+    public RegionLayout(int columns, int rows, int worldSize, String host, int basePort) {
+        this.columns = columns;
+        this.rows = rows;
+        this.worldPixels = worldSize * CELL_SIZE;
+        this.host = host;
+        this.basePort = basePort;
+    }
+
+    /**
+     * Reads a layout written as columns x rows, such as "2x2".
+     */
+    public static RegionLayout parse(String spec, int worldSize, String host, int basePort) {
+        String[] parts = spec.toLowerCase().split("x");
+        return new RegionLayout(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), worldSize, host, basePort);
+    }
+
+    public int count() {
+        return columns * rows;
+    }
+
+    /**
+     * The region a point in pixels falls in, or -1 if it is off the world.
+     */
+    public int regionAt(double x, double y) {
+        if (x < 0 || y < 0 || x >= worldPixels || y >= worldPixels) {
+            return -1;
+        }
+        int column = (int)(x * columns / worldPixels);
+        int row = (int)(y * rows / worldPixels);
+        return row * columns + column;
+    }
+
+    /**
+     * Whether a point is within margin pixels of the given region, or inside it.
+     */
+    public boolean isNear(int region, double x, double y, double margin) {
+        double width = worldPixels / columns;
+        double height = worldPixels / rows;
+        double left = (region % columns) * width;
+        double top = (region / columns) * height;
+        return x >= left - margin && x < left + width + margin && y >= top - margin && y < top + height + margin;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int clientPort(int region) {
+        return basePort + region;
+    }
+
+    public int peerPort(int region) {
+        return basePort + PEER_PORT_OFFSET + region;
+    }
+}
@@ -0,0 +1,369 @@
+package com.bb.server;
+
+import com.bb.common.data.*;
+import com.bb.common.net.Codec;
+import com.bb.common.net.MpscRing;
+import com.bb.common.net.WireFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This server's part in one world split across several processes by a RegionLayout.  The tick of the room
+ * simulating the region uses it to hand players who walk out of the region to the server that owns where they went,
+ * to mirror everything near a border to the region on the other side, and to pass hits on mirrored players back to
+ * the server that owns them.
+ *
+ * Other regions connect in on this region's peer port, and each of those connections gets a reader thread that
+ * queues what arrives for the tick.  Outgoing messages are buffered per region during the tick, and flush() hands
+ * each region's buffer to a writer thread of its own that connects on first use and writes it out.  The tick never
+ * waits on the network: while a region is unreachable, or its writer has a queue's worth of output still to write,
+ * what the tick flushes for it is dropped.
+ */
+public class RegionLink {
+    // How far past a border entities are mirrored: far enough to be seen from the other side
+    public static final double MIRROR_MARGIN = DemoServer.DEFAULT_VIEW_RADIUS;
+    // How long a handed off player is kept waiting for its client to turn up
+    public static final long HANDOFF_TIMEOUT = 10000;
+    // Between attempts to reach a region that isn't up
+    public static final long RECONNECT_INTERVAL = 1000;
+    // Flushed ticks waiting for a region's writer; a quarter of a second's worth
+    public static final int PEER_QUEUE_CAPACITY = 16;
+
+    private RegionLayout layout;
+    private int self;
+    // Filled by the peer readers, drained by the tick
+    private Queue<Object> inbound = new ConcurrentLinkedQueue<>();
+    // Started on first use
+    private PeerWriter[] peers;
+    private ByteBuffer[] outbound;
+    private Codec encoder = WireFormat.BINARY.newCodec();
+    private Random random = new SecureRandom();
+
+    // Everything below is only touched by the tick.  Handoffs are kept in the order they arrived, so the oldest
+    // are the first to expire.
+    private LinkedHashMap<Long, Handoff> handoffs = new LinkedHashMap<>();
+    private Map<Long, Long> handoffDeadlines = new HashMap<>();
+    // The latest mirror from each region, with ids made unique to this process
+    private List<Map<String, PlayerStats>> ghosts = new ArrayList<>();
+    // Whether the last mirror sent to each region was empty, so there is no need to send another
+    private boolean[] mirroredEmpty;
+
+    public RegionLink(RegionLayout layout, int self) {
+        this.layout = layout;
+        this.self = self;
+        peers = new PeerWriter[layout.count()];
+        outbound = new ByteBuffer[layout.count()];
+        mirroredEmpty = new boolean[layout.count()];
+        for (int ii = 0; ii < layout.count(); ii++) {
+            outbound[ii] = ByteBuffer.allocate(4096);
+            ghosts.add(new HashMap<String, PlayerStats>());
+        }
+    }
+
+    public RegionLayout getLayout() {
+        return layout;
+    }
+
+    public int getRegion() {
+        return self;
+    }
+
+    /**
+     * Starts taking connections from the other regions.
+     */
+    public void start() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(layout.peerPort(self)));
+        new PeerAcceptor(ssc).start();
+    }
+
+    /**
+     * The region other than this one that a point has moved into, or -1 if it is still ours (or off the world).
+     */
+    public int leaving(double x, double y) {
+        int region = layout.regionAt(x, y);
+        return region == self ? -1 : region;
+    }
+
+    /**
+     * Sends the player to the given region and returns the Redirect to give its client, or null if that region
+     * can't be reached right now and the player should stay here.
+     */
+    public Redirect handOff(int region, PlayerStats player) {
+        if (!peer(region).connected) {
+            return null;
+        }
+        long token = random.nextLong();
+        send(region, new Handoff(token, player.getX(), player.getY(), player.getHealth()));
+        return new Redirect(layout.getHost(), layout.clientPort(region), token);
+    }
+
+    /**
+     * The player handed to us with this token, if it hasn't been claimed or expired.
+     */
+    public Handoff claim(long token) {
+        handoffDeadlines.remove(token);
+        return handoffs.remove(token);
+    }
+
+    /**
+     * Applies everything the other regions have sent since the last tick: handoffs are held for claim(), mirrors
+     * replace the ghosts from their region and hits come off the health of our own players.
+     */
+    public void receive(EntityStore entities) {
+        Object obj;
+        while ((obj = inbound.poll()) != null) {
+            if (obj instanceof Handoff) {
+                Handoff handoff = (Handoff)obj;
+                handoffs.put(handoff.getToken(), handoff);
+                handoffDeadlines.put(handoff.getToken(), System.currentTimeMillis() + HANDOFF_TIMEOUT);
+            } else if (obj instanceof RegionMirror) {
+                RegionMirror mirror = (RegionMirror)obj;
+                Map<String, PlayerStats> regionGhosts = ghosts.get(mirror.getRegion());
+                regionGhosts.clear();
+                for (PlayerStats ps : mirror.getEntities()) {
+                    String id = ghostId(mirror.getRegion(), ps.getPlayerId());
+                    regionGhosts.put(id, new PlayerStats(id, ps.getX(), ps.getY(), ps.getHealth(), ps.isBot()));
+                }
+            } else if (obj instanceof RemoteHit) {
+                damage(entities, (RemoteHit)obj);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Long> iter = handoffs.keySet().iterator();
+        while (iter.hasNext()) {
+            Long token = iter.next();
+            if (handoffDeadlines.get(token) > now) {
+                break;
+            }
+            iter.remove();
+            handoffDeadlines.remove(token);
+        }
+    }
+
+    /**
+     * Sends each other region everything of ours that is near it.  Ghosts in current are skipped.
+     */
+    public void mirror(Map<String, PlayerStats> current) {
+        for (int region = 0; region < layout.count(); region++) {
+            if (region == self) {
+                continue;
+            }
+            List<PlayerStats> near = new ArrayList<>();
+            for (PlayerStats ps : current.values()) {
+                boolean ghost = ps.getHandle() == EntityStore.NO_HANDLE;
+                if (!ghost && layout.isNear(region, ps.getX(), ps.getY(), MIRROR_MARGIN)) {
+                    near.add(ps);
+                }
+            }
+            if (!near.isEmpty() || !mirroredEmpty[region]) {
+                send(region, new RegionMirror(self, near));
+                mirroredEmpty[region] = near.isEmpty();
+            }
+        }
+    }
+
+    /**
+     * Adds the latest ghosts from every other region to a snapshot of our own players.
+     */
+    public void addGhosts(Map<String, PlayerStats> state) {
+        for (Map<String, PlayerStats> regionGhosts : ghosts) {
+            state.putAll(regionGhosts);
+        }
+    }
+
+    /**
+     * Passes a hit on to the region that owns the player.  Returns false if the player isn't a ghost.
+     */
+    public boolean hit(PlayerStats player, int damage) {
+        String id = player.getPlayerId();
+        int colon = id.indexOf(':');
+        if (player.getHandle() != EntityStore.NO_HANDLE || !id.startsWith("r") || colon < 0) {
+            return false;
+        }
+        send(Integer.parseInt(id.substring(1, colon)), new RemoteHit(id.substring(colon + 1), damage));
+        return true;
+    }
+
+    /**
+     * Hands everything sent this tick to the regions' writers.  Whatever can't be delivered is dropped: mirrors are
+     * resent every snapshot anyway, and a lost handoff just leaves its client's Resume unclaimed.
+     */
+    public void flush() {
+        for (int region = 0; region < layout.count(); region++) {
+            ByteBuffer buf = outbound[region];
+            if (buf.position() == 0) {
+                continue;
+            }
+            PeerWriter peer = peer(region);
+            if (peer.connected) {
+                buf.flip();
+                ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+                copy.put(buf);
+                copy.flip();
+                if (peer.queue.offer(copy)) {
+                    LockSupport.unpark(peer);
+                }
+            }
+            buf.clear();
+        }
+    }
+
+    private void send(int region, Object message) {
+        outbound[region] = encoder.encode(message, outbound[region]);
+    }
+
+    private String ghostId(int region, String id) {
+        return "r" + region + ":" + id;
+    }
+
+    private void damage(EntityStore entities, RemoteHit hit) {
+        String id = hit.getPlayerId();
+        int dot = id.indexOf('.');
+        int handle = Integer.parseInt(dot < 0 ? id : id.substring(0, dot));
+        if (entities.isAlive(handle) && id.equals(entities.getId(handle))) {
+            entities.setHealth(handle, Math.max(0, entities.getHealth(handle) - hit.getDamage()));
+        }
+    }
+
+    private PeerWriter peer(int region) {
+        if (peers[region] == null) {
+            peers[region] = new PeerWriter(region);
+            peers[region].start();
+        }
+        return peers[region];
+    }
+
+    /**
+     * Keeps a connection to one other region and writes out what the tick has flushed to it, so a region that is
+     * slow or down only ever holds up this thread.
+     */
+    private class PeerWriter extends Thread {
+        int region;
+        // Filled by the tick while connected, drained only here
+        MpscRing<ByteBuffer> queue = new MpscRing<>(PEER_QUEUE_CAPACITY);
+        volatile boolean connected;
+
+        public PeerWriter(int region) {
+            super("region-writer-" + region);
+            this.region = region;
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                SocketChannel sc;
+                try {
+                    sc = SocketChannel.open(new InetSocketAddress(layout.getHost(), layout.peerPort(region)));
+                    sc.socket().setTcpNoDelay(true);
+                } catch (IOException ex) {
+                    if (!pause()) {
+                        return;
+                    }
+                    continue;
+                }
+                System.out.println("Linked to region " + region);
+                // Anything the tick got in just as the last connection went is stale by now
+                while (queue.poll() != null) {
+                    // Dropped
+                }
+                connected = true;
+
+                try {
+                    while (true) {
+                        ByteBuffer buf = queue.poll();
+                        if (buf == null) {
+                            LockSupport.park(this);
+                            continue;
+                        }
+                        while (buf.hasRemaining()) {
+                            sc.write(buf);
+                        }
+                    }
+                } catch (IOException ex) {
+                    System.out.println("Lost region " + region + ": " + ex.getMessage());
+                }
+                connected = false;
+                try {
+                    sc.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                if (!pause()) {
+                    return;
+                }
+            }
+        }
+
+        private boolean pause() {
+            try {
+                Thread.sleep(RECONNECT_INTERVAL);
+                return true;
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+    }
+
+    private class PeerAcceptor extends Thread {
+        ServerSocketChannel ssc;
+
+        public PeerAcceptor(ServerSocketChannel ssc) {
+            super("region-acceptor");
+            this.ssc = ssc;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    new PeerReader(ssc.accept()).start();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Blocks reading one other region's connection and queues whatever it sends for the tick.
+     */
+    private class PeerReader extends Thread {
+        SocketChannel sc;
+
+        public PeerReader(SocketChannel sc) {
+            super("region-reader");
+            this.sc = sc;
+        }
+
+        public void run() {
+            Codec codec = WireFormat.BINARY.newCodec();
+            try {
+                while (codec.readFrom(sc) >= 0) {
+                    while (codec.hasData()) {
+                        Object obj = codec.getData();
+                        if (obj != null) {
+                            inbound.add(obj);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                // The other region went away; it reconnects when it comes back
+            }
+            try {
+                sc.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
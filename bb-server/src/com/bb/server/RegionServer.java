@@ -0,0 +1,58 @@
+package com.bb.server;
+
+import com.bb.common.data.GameWorld;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs one region of a world split across several server processes on this host.  Start one per region, all with the
+ * same layout and map file, for example for two regions side by side:
+ *
+ *   java com.bb.server.RegionServer 2x1 0 world.bbw
+ *   java com.bb.server.RegionServer 2x1 1 world.bbw
+ *
+ * Clients can connect to any region; a new player that spawns in another region, or walks into one, is redirected
+ * there with its position and health.  Metrics for region n are on DEFAULT_METRICS_PORT + n.
+ */
+public class RegionServer {
+    public static final int DEFAULT_BASE_PORT = 8080;
+
+    /**
+     * Arguments: layout region map-file [io mode] [map size] [base port].  The map file is created at the given size
+     * if it doesn't exist, so start region 0 first the first time round.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: RegionServer <columns>x<rows> <region> <map file> [io mode] [map size] "
+                    + "[base port]");
+            return;
+        }
+        int index = Integer.parseInt(args[1]);
+        File mapFile = new File(args[2]);
+        DemoServer.IoMode mode = args.length > 3 ? DemoServer.IoMode.valueOf(args[3].toUpperCase())
+                : DemoServer.IoMode.THREADS;
+        int basePort = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_BASE_PORT;
+
+        GameWorld world;
+        if (mapFile.exists()) {
+            world = GameWorld.load(mapFile);
+        } else {
+            int size = args.length > 4 ? Integer.parseInt(args[4]) : DemoServer.DEFAULT_WORLD_SIZE;
+            world = DemoServer.createRandomWorld(size);
+            world.save(mapFile);
+        }
+
+        RegionLayout layout = RegionLayout.parse(args[0], world.getSize(), "localhost", basePort);
+        RegionLink link = new RegionLink(layout, index);
+        link.start();
+
+        DemoServer server = new DemoServer(layout.clientPort(index), mode, world);
+        // The whole region is one match, however many play in it
+        server.setRoomCapacity(Integer.MAX_VALUE);
+        server.setMetricsPort(DemoServer.DEFAULT_METRICS_PORT + index);
+        server.setRegion(link);
+        System.out.println("Region " + index + " of " + layout.count() + " on port " + layout.clientPort(index));
+        server.go();
+    }
+}
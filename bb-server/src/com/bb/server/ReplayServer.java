@@ -0,0 +1,201 @@
+package com.bb.server;
+
+import com.bb.common.data.*;
+import com.bb.common.net.Codec;
+import com.bb.common.net.FrameBuffer;
+import com.bb.common.net.WireFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+/**
+ * Plays a match recorded by DemoServer back to ordinary DemoClients, as if they were watching it live.  Each client
+ * gets its own copy from the start tick on, at the live snapshot rate scaled by the given speed.  The client is
+ * welcomed as a spectator parked off the map, and whatever it sends other than timing packets is ignored.
+ *
+ *   java com.bb.server.ReplayServer recordings/room-0-20260101-120000 8080 3600 2
+ */
+public class ReplayServer {
+    public static final String SPECTATOR_ID = "spectator";
+    private static final long HANDSHAKE_TIMEOUT = 250;
+
+    private MatchRecording recording;
+    private int port;
+    private long startTick;
+    private double speed;
+
+    public ReplayServer(MatchRecording recording, int port, long startTick, double speed) {
+        this.recording = recording;
+        this.port = port;
+        this.startTick = startTick;
+        this.speed = speed;
+    }
+
+    /**
+     * Arguments: recording-directory [port] [start tick] [speed].
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: ReplayServer <recording directory> [port] [start tick] [speed]");
+            return;
+        }
+        MatchRecording recording = new MatchRecording(new File(args[0]));
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        long startTick = args.length > 2 ? Long.parseLong(args[2]) : recording.getFirstTick();
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        new ReplayServer(recording, port, startTick, speed).go();
+    }
+
+    public void go() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(port));
+        System.out.println("Replaying from tick " + startTick + " on port " + port);
+        while (true) {
+            new Viewer(ssc.accept()).start();
+        }
+    }
+
+    /**
+     * Streams the recording to one client.
+     */
+    private class Viewer extends Thread {
+        SocketChannel sc;
+        FrameBuffer in = new FrameBuffer();
+        Codec codec;
+        ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+
+        public Viewer(SocketChannel sc) {
+            super("replay-viewer");
+            this.sc = sc;
+        }
+
+        public void run() {
+            try {
+                sc.configureBlocking(false);
+                WireFormat format = handshake();
+                codec = format.newCodec(in);
+                System.out.println("Viewer connected (" + format + ")");
+
+                send(new PlayerStats(SPECTATOR_ID, -100, -100, 0, false));
+                sendWorld(format);
+                stream();
+                System.out.println("Replay finished");
+            } catch (Exception ex) {
+                System.out.println("Viewer left: " + ex.getMessage());
+            }
+            try {
+                sc.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        private WireFormat handshake() throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+            while (in.available() == 0 && System.currentTimeMillis() < deadline) {
+                if (in.readFrom(sc) < 0) {
+                    throw new IOException("Closed before the handshake");
+                }
+                Thread.sleep(5);
+            }
+            if (in.available() > 0 && in.get(0) == WireFormat.HANDSHAKE) {
+                in.consume(1);
+                return WireFormat.BINARY;
+            }
+            return WireFormat.TEXT;
+        }
+
+        private void sendWorld(WireFormat format) throws IOException {
+            GameWorld world = recording.getWorld();
+            if (format == WireFormat.BINARY) {
+                byte[] encoded = world.getEncoded();
+                for (int offset = 0; offset < encoded.length; offset += WorldChunk.CHUNK_SIZE) {
+                    int length = Math.min(WorldChunk.CHUNK_SIZE, encoded.length - offset);
+                    out = codec.encode(new WorldChunk(world.getVersion(), world.getSize(), encoded.length, offset,
+                            encoded, offset, length), out);
+                }
+                flush();
+            } else {
+                send(world);
+            }
+        }
+
+        /**
+         * Sends every DemoServer.DEFAULT_SNAPSHOT_INTERVAL'th tick as a delta against the one sent before, with the
+         * shots fired in between, keeping to the recorded tick rate.
+         */
+        private void stream() throws IOException, InterruptedException {
+            MatchRecording.Cursor cursor = recording.seek(startTick);
+            long nanosPerTick = (long)(1000000000L / DemoServer.TICK_RATE / speed);
+            long started = System.nanoTime();
+            long firstTick = -1;
+            long sentTick = SnapshotDelta.FULL;
+            Map<String, PlayerStats> sentState = null;
+            List<ShotFired> shots = new ArrayList<>();
+
+            MatchRecording.Tick tick;
+            while ((tick = cursor.next()) != null) {
+                shots.addAll(tick.getShots());
+                if (firstTick < 0) {
+                    firstTick = tick.getTick();
+                }
+                if (tick.getTick() % DemoServer.DEFAULT_SNAPSHOT_INTERVAL != 0) {
+                    continue;
+                }
+
+                long due = started + (tick.getTick() - firstTick) * nanosPerTick;
+                while (System.nanoTime() < due) {
+                    answerTimingPackets();
+                    Thread.sleep(Math.max(1, Math.min(5, (due - System.nanoTime()) / 1000000)));
+                }
+
+                out = codec.encode(SnapshotDelta.between(sentTick, sentState, tick.getTick(), tick.getState()), out);
+                for (ShotFired sf : shots) {
+                    out = codec.encode(sf, out);
+                }
+                flush();
+                shots.clear();
+                sentTick = tick.getTick();
+                sentState = tick.getState();
+            }
+        }
+
+        /**
+         * Without answers the client can't estimate its ping, which it uses to place its own player.
+         */
+        private void answerTimingPackets() throws IOException {
+            if (in.readFrom(sc) < 0) {
+                throw new IOException("Connection closed");
+            }
+            while (codec.hasData()) {
+                Object obj = codec.getData();
+                if (obj instanceof TimingPacket && ((TimingPacket)obj).getReturnTime() == 0) {
+                    TimingPacket tp = (TimingPacket)obj;
+                    tp.recordResponseTime();
+                    out = codec.encode(tp, out);
+                }
+            }
+            flush();
+        }
+
+        private void send(Object message) throws IOException {
+            out = codec.encode(message, out);
+            flush();
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                if (sc.write(out) == 0) {
+                    Thread.yield();
+                }
+            }
+            out.clear();
+        }
+    }
+}
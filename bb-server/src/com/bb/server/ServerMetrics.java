@@ -0,0 +1,320 @@
+package com.bb.server;
+
+import com.bb.common.data.*;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters and histograms describing a running server, readable over JMX and in Prometheus text format.
+ * Everything is preallocated and backed by LongAdders, so the recording side is a few uncontended increments and
+ * can stay on in production.  Gauges that already exist elsewhere (queue depths, player counts) are read or pushed
+ * once per tick rather than tracked on every change.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    public static final String OBJECT_NAME = "com.bb.server:type=ServerMetrics";
+
+    // Message classes that get their own counters; anything else is counted under the last slot
+    private static final Class<?>[] MESSAGE_TYPES = new Class<?>[] { PlayerStats.class, ShotFired.class,
+            ClientKeyEvent.class, ClientShotAttempt.class, TimingPacket.class, GameWorld.class, SnapshotDelta.class,
+            SnapshotAck.class, WorldChunk.class, ClientInput.class, Redirect.class, Resume.class };
+
+    // 16 us up to about half a second
+    public final Histogram tickMicros = Histogram.exponential(16, 16);
+    // One pass of a connection loop (a reactor select or a polling handler iteration), without the waiting
+    public final Histogram loopMicros = Histogram.exponential(16, 16);
+    // 1 ms up to about 8 s
+    public final Histogram rttMillis = Histogram.exponential(1, 14);
+
+    private final LongAdder[] messagesRead = newAdders(MESSAGE_TYPES.length + 1);
+    private final LongAdder[] messagesWritten = newAdders(MESSAGE_TYPES.length + 1);
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder blockedMoves = new LongAdder();
+    private final LongAdder droppedSnapshots = new LongAdder();
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    // Numbers connections for their Prometheus label; player ids repeat from room to room
+    private final AtomicLong nextConnection = new AtomicLong();
+
+    // Every room adds the change in its own population each tick
+    private final LongAdder players = new LongAdder();
+    private final LongAdder bots = new LongAdder();
+    private final LongAdder activeShots = new LongAdder();
+    private final LongAdder rooms = new LongAdder();
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] ret = new LongAdder[count];
+        for (int ii = 0; ii < count; ii++) {
+            ret[ii] = new LongAdder();
+        }
+        return ret;
+    }
+
+    private static int typeIndex(Class<?> type) {
+        for (int ii = 0; ii < MESSAGE_TYPES.length; ii++) {
+            if (MESSAGE_TYPES[ii] == type) {
+                return ii;
+            }
+        }
+        return MESSAGE_TYPES.length;
+    }
+
+    private static String typeName(int index) {
+        return index < MESSAGE_TYPES.length ? MESSAGE_TYPES[index].getSimpleName() : "Other";
+    }
+
+    /**
+     * Registers this object with the platform MBean server.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts tracking a connection.  queueDepth is only called when metrics are read.
+     */
+    public Connection connect(IntSupplier queueDepth) {
+        Connection ret = new Connection(nextConnection.incrementAndGet(), queueDepth);
+        connections.add(ret);
+        return ret;
+    }
+
+    public void disconnect(Connection connection) {
+        connections.remove(connection);
+    }
+
+    public void blockedMove() {
+        blockedMoves.increment();
+    }
+
+    public void droppedSnapshot() {
+        droppedSnapshots.increment();
+    }
+
+    public void changePopulation(int players, int bots, int activeShots) {
+        this.players.add(players);
+        this.bots.add(bots);
+        this.activeShots.add(activeShots);
+    }
+
+    public void roomOpened() {
+        rooms.increment();
+    }
+
+    public void roomClosed() {
+        rooms.decrement();
+    }
+
+    /**
+     * Per connection counters, which also feed the server wide totals.
+     */
+    public class Connection {
+        private final long number;
+        private final IntSupplier queueDepth;
+        private final LongAdder read = new LongAdder();
+        private final LongAdder written = new LongAdder();
+        private final LongAdder messagesIn = new LongAdder();
+        private final LongAdder messagesOut = new LongAdder();
+        // Player id once joined, shown next to the connection's number; only unique within its room
+        volatile String id;
+
+        private Connection(long number, IntSupplier queueDepth) {
+            this.number = number;
+            this.queueDepth = queueDepth;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public void bytesRead(int count) {
+            if (count > 0) {
+                read.add(count);
+                bytesRead.add(count);
+            }
+        }
+
+        public void bytesWritten(int count) {
+            if (count > 0) {
+                written.add(count);
+                bytesWritten.add(count);
+            }
+        }
+
+        public void messageRead(Object message) {
+            messagesIn.increment();
+            messagesRead[typeIndex(message.getClass())].increment();
+        }
+
+        public void messagesWritten(Class<?> type, int count) {
+            messagesOut.add(count);
+            messagesWritten[typeIndex(type)].add(count);
+        }
+    }
+
+    /**
+     * Everything, in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+
+        out.append("# TYPE bb_tick_duration_micros histogram\n");
+        tickMicros.writePrometheus(out, "bb_tick_duration_micros", "");
+        out.append("# TYPE bb_loop_duration_micros histogram\n");
+        loopMicros.writePrometheus(out, "bb_loop_duration_micros", "");
+        out.append("# TYPE bb_rtt_millis histogram\n");
+        rttMillis.writePrometheus(out, "bb_rtt_millis", "");
+
+        out.append("# TYPE bb_messages_read_total counter\n");
+        for (int ii = 0; ii < messagesRead.length; ii++) {
+            out.append("bb_messages_read_total{type=\"").append(typeName(ii)).append("\"} ").append(messagesRead[ii].sum()).append('\n');
+        }
+        out.append("# TYPE bb_messages_written_total counter\n");
+        for (int ii = 0; ii < messagesWritten.length; ii++) {
+            out.append("bb_messages_written_total{type=\"").append(typeName(ii)).append("\"} ").append(messagesWritten[ii].sum()).append('\n');
+        }
+        gauge(out, "bb_bytes_read_total", "counter", bytesRead.sum());
+        gauge(out, "bb_bytes_written_total", "counter", bytesWritten.sum());
+        gauge(out, "bb_blocked_moves_total", "counter", blockedMoves.sum());
+        gauge(out, "bb_dropped_snapshots_total", "counter", droppedSnapshots.sum());
+        gauge(out, "bb_connections", "gauge", connections.size());
+        gauge(out, "bb_rooms", "gauge", rooms.sum());
+        gauge(out, "bb_players", "gauge", players.sum());
+        gauge(out, "bb_bots", "gauge", bots.sum());
+        gauge(out, "bb_active_shots", "gauge", activeShots.sum());
+
+        // Every family lists the same connections, even if one joins or leaves while we're writing
+        Connection[] current = connections.toArray(new Connection[0]);
+        perConnection(out, "bb_connection_bytes_read_total", "counter", current, cc -> cc.read.sum());
+        perConnection(out, "bb_connection_bytes_written_total", "counter", current, cc -> cc.written.sum());
+        perConnection(out, "bb_connection_messages_read_total", "counter", current, cc -> cc.messagesIn.sum());
+        perConnection(out, "bb_connection_messages_written_total", "counter", current, cc -> cc.messagesOut.sum());
+        perConnection(out, "bb_connection_queue_depth", "gauge", current, cc -> cc.queueDepth.getAsInt());
+        return out.toString();
+    }
+
+    /**
+     * One metric family with a sample per connection, labelled with the connection's number and, once it has
+     * joined, its player.  Prometheus wants all of a family's samples together, straight after its TYPE line.
+     */
+    private static void perConnection(StringBuilder out, String name, String type, Connection[] current,
+            ToLongFunction<Connection> value) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (Connection cc : current) {
+            String id = cc.id;
+            out.append(name).append("{connection=\"").append(cc.number).append('"');
+            if (id != null) {
+                out.append(",player=\"").append(id).append('"');
+            }
+            out.append("} ").append(value.applyAsLong(cc)).append('\n');
+        }
+    }
+
+    private static void gauge(StringBuilder out, String name, String type, long value) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    public long getTicks() {
+        return tickMicros.getCount();
+    }
+
+    public long getTickP50Micros() {
+        return tickMicros.getQuantile(0.5);
+    }
+
+    public long getTickP99Micros() {
+        return tickMicros.getQuantile(0.99);
+    }
+
+    public long getLoopP99Micros() {
+        return loopMicros.getQuantile(0.99);
+    }
+
+    public long getRttP50Millis() {
+        return rttMillis.getQuantile(0.5);
+    }
+
+    public long getRttP99Millis() {
+        return rttMillis.getQuantile(0.99);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getMessagesRead() {
+        long ret = 0;
+        for (LongAdder adder : messagesRead) {
+            ret += adder.sum();
+        }
+        return ret;
+    }
+
+    public long getMessagesWritten() {
+        long ret = 0;
+        for (LongAdder adder : messagesWritten) {
+            ret += adder.sum();
+        }
+        return ret;
+    }
+
+    public int getConnections() {
+        return connections.size();
+    }
+
+    public int getRooms() {
+        return rooms.intValue();
+    }
+
+    public int getPlayers() {
+        return players.intValue();
+    }
+
+    public int getBots() {
+        return bots.intValue();
+    }
+
+    public int getActiveShots() {
+        return activeShots.intValue();
+    }
+
+    public int getTotalQueueDepth() {
+        int ret = 0;
+        for (Connection cc : connections) {
+            ret += cc.queueDepth.getAsInt();
+        }
+        return ret;
+    }
+
+    public int getMaxQueueDepth() {
+        int ret = 0;
+        for (Connection cc : connections) {
+            ret = Math.max(ret, cc.queueDepth.getAsInt());
+        }
+        return ret;
+    }
+
+    public long getBlockedMoves() {
+        return blockedMoves.sum();
+    }
+
+    public long getDroppedSnapshots() {
+        return droppedSnapshots.sum();
+    }
+}
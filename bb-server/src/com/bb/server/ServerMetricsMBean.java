@@ -0,0 +1,45 @@
+package com.bb.server;
+
+/**
+ * What ServerMetrics shows over JMX.  Durations are in microseconds and round trips in milliseconds; quantiles are
+ * the upper bound of the histogram bucket they fall in.
+ */
+public interface ServerMetricsMBean {
+    long getTicks();
+
+    long getTickP50Micros();
+
+    long getTickP99Micros();
+
+    long getLoopP99Micros();
+
+    long getRttP50Millis();
+
+    long getRttP99Millis();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getMessagesRead();
+
+    long getMessagesWritten();
+
+    int getConnections();
+
+    int getRooms();
+
+    int getPlayers();
+
+    int getBots();
+
+    int getActiveShots();
+
+    int getTotalQueueDepth();
+
+    int getMaxQueueDepth();
+
+    long getBlockedMoves();
+
+    long getDroppedSnapshots();
+}
@@ -0,0 +1,124 @@
+package com.bb.server;
+
+import com.bb.common.data.GameWorld;
+import com.bb.common.data.PlayerStats;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over the world that buckets players by position so radius queries only look at nearby buckets.
+ * Each bucket spans a square of GameWorld cells.  The grid is rebuilt from scratch every tick with a counting
+ * sort into flat arrays, which is cheaper than tracking every move incrementally.
+ */
+public class SpatialGrid {
+    private int bucketSize;
+    private int columns;
+    private int rows;
+    // Players sorted by bucket; bucket b holds entries[start[b] .. start[b + 1])
+    private int[] start;
+    private PlayerStats[] entries;
+    private PlayerStats[] unsorted;
+    private int[] bucketOf;
+
+    /**
+     * @param worldSize width and height of the world, in cells
+     * @param cellsPerBucket width and height of one bucket, in cells
+     */
+    public SpatialGrid(int worldSize, int cellsPerBucket) {
+        bucketSize = cellsPerBucket * GameWorld.CELL_SIZE;
+        columns = (worldSize + cellsPerBucket - 1) / cellsPerBucket;
+        rows = columns;
+        start = new int[columns * rows + 1];
+        entries = new PlayerStats[16];
+        unsorted = new PlayerStats[16];
+        bucketOf = new int[16];
+    }
+
+    public void rebuild(Collection<PlayerStats> players) {
+        int count = players.size();
+        if (entries.length < count) {
+            entries = new PlayerStats[Math.max(count, entries.length * 2)];
+            unsorted = new PlayerStats[entries.length];
+            bucketOf = new int[entries.length];
+        }
+
+        Arrays.fill(start, 0);
+        int ii = 0;
+        for (PlayerStats pp : players) {
+            int bucket = bucket(pp.getX(), pp.getY());
+            unsorted[ii] = pp;
+            bucketOf[ii++] = bucket;
+            start[bucket + 1]++;
+        }
+        for (int bb = 0; bb < columns * rows; bb++) {
+            start[bb + 1] += start[bb];
+        }
+
+        // Fill each bucket from its start, then shift start back down by one bucket
+        for (ii = 0; ii < count; ii++) {
+            entries[start[bucketOf[ii]]++] = unsorted[ii];
+        }
+        for (int bb = columns * rows; bb > 0; bb--) {
+            start[bb] = start[bb - 1];
+        }
+        start[0] = 0;
+    }
+
+    /**
+     * Adds every player within radius of (x, y) to out, keyed by player id.
+     */
+    public void query(double x, double y, double radius, Map<String, PlayerStats> out) {
+        int minCol = clamp((int)Math.floor((x - radius) / bucketSize), columns);
+        int maxCol = clamp((int)Math.floor((x + radius) / bucketSize), columns);
+        int minRow = clamp((int)Math.floor((y - radius) / bucketSize), rows);
+        int maxRow = clamp((int)Math.floor((y + radius) / bucketSize), rows);
+        double radiusSq = radius * radius;
+
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                int bucket = row * columns + col;
+                for (int ii = start[bucket]; ii < start[bucket + 1]; ii++) {
+                    PlayerStats pp = entries[ii];
+                    double dx = pp.getX() - x;
+                    double dy = pp.getY() - y;
+                    if (dx * dx + dy * dy <= radiusSq) {
+                        out.put(pp.getPlayerId(), pp);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds every player whose bucket overlaps the given box to out.  Players near the edges of those buckets may
+     * lie outside the box, so callers still need their own exact test.
+     */
+    public void queryBox(double minX, double minY, double maxX, double maxY, List<PlayerStats> out) {
+        int minCol = clamp((int)Math.floor(minX / bucketSize), columns);
+        int maxCol = clamp((int)Math.floor(maxX / bucketSize), columns);
+        int minRow = clamp((int)Math.floor(minY / bucketSize), rows);
+        int maxRow = clamp((int)Math.floor(maxY / bucketSize), rows);
+
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                int bucket = row * columns + col;
+                for (int ii = start[bucket]; ii < start[bucket + 1]; ii++) {
+                    out.add(entries[ii]);
+                }
+            }
+        }
+    }
+
+    private int bucket(double x, double y) {
+        int col = clamp((int)Math.floor(x / bucketSize), columns);
+        int row = clamp((int)Math.floor(y / bucketSize), rows);
+        return row * columns + col;
+    }
+
+    private static int clamp(int value, int limit) {
+        return Math.max(0, Math.min(limit - 1, value));
+    }
+}
@@ -0,0 +1,51 @@
+package com.bb.server;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads on JVMs that have them (Java 21, or 19/20 with preview features enabled), looked up by
+ * reflection so the server still builds and runs on older JVMs.  Where they aren't available, newThread() falls
+ * back to an ordinary platform thread.
+ */
+public class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            name = builderClass.getMethod("name", String.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            // Throws if this is the preview API and preview features are off
+            ofVirtual.invoke(null);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * An unstarted virtual thread running task, or a platform thread if virtual threads aren't available.
+     */
+    public static Thread newThread(String name, Runnable task) {
+        if (OF_VIRTUAL != null) {
+            try {
+                return (Thread)UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Could not create virtual thread", ex);
+            }
+        }
+        return new Thread(task, name);
+    }
+}
@@ -0,0 +1,142 @@
+package com.bb.server;
+
+import com.bb.common.data.*;
+import com.bb.common.net.BinaryCodec;
+import com.bb.common.net.WireFormat;
+import org.junit.Test;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+    private static final long TOKEN = 0x1234567890L;
+
+    private static Checkpoint twoRooms() {
+        GameWorld world = new GameWorld(30);
+        List<Checkpoint.RoomState> rooms = new ArrayList<>();
+        rooms.add(new Checkpoint.RoomState(
+                Collections.singletonList(new PlayerStats("0.0", 200, 200, 70, true)),
+                Collections.singletonList(new ShotFired(new Point(10, 20), new Point(30, 40))),
+                Collections.<Handoff>emptyList()));
+        rooms.add(new Checkpoint.RoomState(
+                Arrays.asList(new PlayerStats("0.0", 300, 300, 100, true), new PlayerStats("1.0", 320, 300, 40, true)),
+                Collections.<ShotFired>emptyList(),
+                Collections.singletonList(new Handoff(TOKEN, 250, 410, 55))));
+        return new Checkpoint(world, rooms);
+    }
+
+    private static File save(Checkpoint checkpoint) throws IOException {
+        File file = File.createTempFile("checkpoint", ".bbc");
+        file.deleteOnExit();
+        checkpoint.save(file);
+        return file;
+    }
+
+    @Test
+    public void savesAndLoadsEveryRoom() throws IOException {
+        Checkpoint loaded = Checkpoint.load(save(twoRooms()));
+
+        assertEquals(30, loaded.getWorld().getSize());
+        assertEquals(2, loaded.getRooms().size());
+        Checkpoint.RoomState first = loaded.getRooms().get(0);
+        assertEquals(1, first.getBots().size());
+        assertEquals(200, first.getBots().get(0).getX(), 0);
+        assertEquals(70, first.getBots().get(0).getHealth());
+        assertEquals(1, first.getShots().size());
+        assertEquals(new Point(30, 40), first.getShots().get(0).getTarget());
+        assertEquals(0, first.getPlayers().size());
+
+        Checkpoint.RoomState second = loaded.getRooms().get(1);
+        assertEquals(2, second.getBots().size());
+        assertEquals(40, second.getBots().get(1).getHealth());
+        Handoff player = second.getPlayers().get(0);
+        assertEquals(TOKEN, player.getToken());
+        assertEquals(250, player.getX(), 0);
+        assertEquals(410, player.getY(), 0);
+        assertEquals(55, player.getHealth());
+    }
+
+    @Test
+    public void resumedPlayerComesBackWhereItWas() throws Exception {
+        Checkpoint loaded = Checkpoint.load(save(twoRooms()));
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        final DemoServer server = new DemoServer(port, DemoServer.IoMode.THREADS, loaded.getWorld());
+        server.setMetricsPort(0);
+        server.restore(loaded);
+        assertEquals(2, server.getRoomCount());
+        Thread serving = new Thread(() -> {
+            try {
+                server.go();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        SocketChannel sc = connect(port);
+        try {
+            BinaryCodec codec = new BinaryCodec();
+            ByteBuffer out = ByteBuffer.allocate(64);
+            out.put(WireFormat.HANDSHAKE);
+            out = codec.encode(new Resume(TOKEN), out);
+            out.flip();
+            while (out.hasRemaining()) {
+                sc.write(out);
+            }
+
+            String me = null;
+            PlayerStats seen = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline && (seen == null || seen.getY() != 410)) {
+                if (codec.readFrom(sc) < 0) {
+                    fail("Server closed the connection");
+                }
+                while (codec.hasData()) {
+                    Object obj = codec.getData();
+                    if (obj instanceof PlayerStats && me == null) {
+                        me = ((PlayerStats)obj).getPlayerId();
+                    } else if (obj instanceof SnapshotDelta && me != null) {
+                        PlayerStats ps = ((SnapshotDelta)obj).applyTo(null).get(me);
+                        if (ps != null) {
+                            seen = ps;
+                        }
+                    }
+                }
+            }
+            assertNotNull(seen);
+            assertEquals(250, seen.getX(), 0);
+            assertEquals(410, seen.getY(), 0);
+        } finally {
+            sc.close();
+        }
+    }
+
+    private static SocketChannel connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (true) {
+            try {
+                return SocketChannel.open(new InetSocketAddress("localhost", port));
+            } catch (IOException ex) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw ex;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.bb.server;
+
+import com.bb.common.data.EntityStore;
+import com.bb.common.data.PlayerStats;
+import com.bb.common.data.SnapshotDelta;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LagCompensatorTest {
+    private static final int TICK_RATE = 60;
+
+    @Test
+    public void viewTickRewindsByRoundTripPlusInterpolationDelay() {
+        // 50ms round trip + 100ms interpolation delay = 150ms = 9 ticks at 60Hz
+        assertEquals(100.0, SnapshotDelta.INTERPOLATION_DELAY, 0);
+        assertEquals(991, LagCompensator.viewTick(1000, 50, TICK_RATE));
+    }
+
+    @Test
+    public void viewTickRewindsByInterpolationDelayAlone() {
+        assertEquals(994, LagCompensator.viewTick(1000, 0, TICK_RATE));
+    }
+
+    @Test
+    public void hitsTargetWhereTheShooterSawIt() {
+        EntityStore entities = new EntityStore();
+        int shooter = entities.allocate(15, 100, 100, false);
+        int target = entities.allocate(100, 100, 100, false);
+        SpatialGrid grid = new SpatialGrid(30, 8);
+        LagCompensator lag = new LagCompensator(grid, 2);
+
+        // The target walks down two pixels a tick for 20 ticks, out of the line of fire
+        for (long tick = 1; tick <= 20; tick++) {
+            if (tick > 1) {
+                entities.setY(target, entities.getY(target) + 2);
+            }
+            lag.record(tick, entities);
+        }
+        List<PlayerStats> current = new ArrayList<>();
+        current.add(entities.copy(shooter));
+        current.add(entities.copy(target));
+        grid.rebuild(current);
+
+        long viewTick = LagCompensator.viewTick(20, 50, TICK_RATE);
+        PlayerStats hit = lag.resolve(shooter, 15, 100, 300, 100, viewTick, 20, 1);
+        assertNull(hit);
+
+        // Nine ticks back it was only 2 * (11 - 1) = 20 pixels down; aim there
+        hit = lag.resolve(shooter, 15, 120, 300, 120, viewTick, 20, 1);
+        assertNotNull(hit);
+        assertEquals(target, hit.getHandle());
+        assertNull(lag.resolve(shooter, 15, 120, 300, 120, 20, 20, 1));
+    }
+}
@@ -0,0 +1,45 @@
+package com.bb.server;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ServerMetricsTest {
+    @Test
+    public void connectionSeriesAreDistinctAcrossRooms() {
+        ServerMetrics metrics = new ServerMetrics();
+        // Every room numbers its players from the same place, so the first player in two rooms shares an id
+        ServerMetrics.Connection room0 = metrics.connect(() -> 0);
+        room0.setId("1.0");
+        ServerMetrics.Connection room1 = metrics.connect(() -> 0);
+        room1.setId("1.0");
+        // And neither of these has joined yet
+        metrics.connect(() -> 0);
+        metrics.connect(() -> 0);
+
+        Set<String> series = new HashSet<>();
+        int samples = 0;
+        for (String line : metrics.toPrometheus().split("\n")) {
+            if (line.startsWith("bb_connection_")) {
+                samples++;
+                String name = line.substring(0, line.lastIndexOf(' '));
+                assertTrue("duplicate series " + name, series.add(name));
+            }
+        }
+        assertEquals(5 * 4, samples);
+        assertTrue(series.contains("bb_connection_queue_depth{connection=\"1\",player=\"1.0\"}"));
+        assertTrue(series.contains("bb_connection_queue_depth{connection=\"2\",player=\"1.0\"}"));
+        assertTrue(series.contains("bb_connection_queue_depth{connection=\"3\"}"));
+    }
+
+    @Test
+    public void disconnectedConnectionsAreNotScraped() {
+        ServerMetrics metrics = new ServerMetrics();
+        ServerMetrics.Connection cc = metrics.connect(() -> 0);
+        metrics.disconnect(cc);
+        assertFalse(metrics.toPrometheus().contains("{connection="));
+    }
+}